@@ -268,6 +268,11 @@ public class MainActivity extends Activity implements
         });
     }
 
+    @Override
+    public void onRfcommLinkStalled(BluetoothDevice bluetoothDevice) {
+        Log.d(TAG, "onRfcommLinkStalled: " + bluetoothDevice.getAddress());
+    }
+
     @Override
     public void onRfcommWriteStarted() {
         Log.d(TAG, "onRfcommWriteStarted");
@@ -0,0 +1,191 @@
+package org.palmalabs.android.bluetooth;
+
+/**
+ * Picks the chunk size and coalescing delay for a link from the measured
+ * latency of each write call, within fixed bounds.
+ *
+ * The chunk tracks the throughput measured on full chunks, sized so one chunk
+ * drains in half the latency target, and halves as soon as a write exceeds the
+ * target. Small writes only wait to coalesce while they keep arriving faster
+ * than the maximum coalescing delay; on a sparse or idle link they go out at
+ * once.
+ */
+public class AdaptiveWriteTuner {
+    public static final int DEFAULT_MIN_CHUNK_SIZE = 64;
+    public static final int DEFAULT_MAX_CHUNK_SIZE = 16 * 1024;
+    public static final long DEFAULT_MAX_COALESCE_DELAY = 20;
+    public static final long DEFAULT_TARGET_LATENCY = 200;
+
+    private static final int INITIAL_CHUNK_SIZE = 1024;
+    // Weight given to the newest sample in the moving averages
+    private static final double SMOOTHING = 0.2;
+
+    private final int mMinChunkSize;
+    private final int mMaxChunkSize;
+    private final long mMaxCoalesceDelayNanos;
+    private final long mTargetLatencyNanos;
+
+    private int mChunkSize;
+    private long mCoalesceDelayNanos;
+    private double mAverageLatencyNanos;
+    private double mAverageThroughput;
+    private long mLastArrivalNanos;
+    private long mLastArrivalGapNanos;
+    private double mAverageArrivalGapNanos;
+    private double mAverageArrivalSize;
+    private long mMaxLatencyNanos;
+    private long mBytesWritten;
+    private long mWriteCount;
+
+    public AdaptiveWriteTuner() {
+        this(DEFAULT_MIN_CHUNK_SIZE, DEFAULT_MAX_CHUNK_SIZE, DEFAULT_MAX_COALESCE_DELAY,
+                DEFAULT_TARGET_LATENCY);
+    }
+
+    /**
+     * @param maxCoalesceDelay longest wait for more data, in milliseconds
+     * @param targetLatency worst-case write latency to aim for, in milliseconds
+     */
+    public AdaptiveWriteTuner(int minChunkSize, int maxChunkSize, long maxCoalesceDelay,
+            long targetLatency) {
+        if (minChunkSize < 1 || maxChunkSize < minChunkSize) {
+            throw new IllegalArgumentException("Invalid chunk size bounds: " + minChunkSize +
+                    ".." + maxChunkSize);
+        }
+        mMinChunkSize = minChunkSize;
+        mMaxChunkSize = maxChunkSize;
+        mMaxCoalesceDelayNanos = maxCoalesceDelay * 1000000;
+        mTargetLatencyNanos = targetLatency * 1000000;
+        mChunkSize = Math.max(minChunkSize, Math.min(maxChunkSize, INITIAL_CHUNK_SIZE));
+        mCoalesceDelayNanos = 0;
+        mLastArrivalGapNanos = Long.MAX_VALUE;
+    }
+
+    public int getMinChunkSize() {
+        return mMinChunkSize;
+    }
+
+    public int getMaxChunkSize() {
+        return mMaxChunkSize;
+    }
+
+    public synchronized int getChunkSize() {
+        return mChunkSize;
+    }
+
+    public synchronized long getCoalesceDelayNanos() {
+        return mCoalesceDelayNanos;
+    }
+
+    public synchronized long getAverageLatencyNanos() {
+        return (long) mAverageLatencyNanos;
+    }
+
+    public synchronized long getMaxLatencyNanos() {
+        return mMaxLatencyNanos;
+    }
+
+    /**
+     * Returns the smoothed throughput of full-chunk write calls, in bytes per
+     * second. Smaller writes are dominated by per-call overhead and left out.
+     */
+    public synchronized long getThroughput() {
+        return (long) mAverageThroughput;
+    }
+
+    public synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    public synchronized long getWriteCount() {
+        return mWriteCount;
+    }
+
+    /**
+     * Records a write being queued, so the coalescing delay follows the rate
+     * at which small writes arrive.
+     */
+    public synchronized void onWriteQueued(int length) {
+        if (length >= mChunkSize) {
+            // Large writes fill chunks on their own
+            return;
+        }
+        long now = System.nanoTime();
+        if (mLastArrivalNanos == 0) {
+            mAverageArrivalSize = length;
+            mLastArrivalGapNanos = Long.MAX_VALUE;
+            mAverageArrivalGapNanos = 2 * mMaxCoalesceDelayNanos;
+        }
+        else {
+            // Only whether gaps are shorter than the maximum delay matters, so
+            // cap long ones and let the average recover quickly after a pause
+            mLastArrivalGapNanos = now - mLastArrivalNanos;
+            long gapNanos = Math.min(mLastArrivalGapNanos, 2 * mMaxCoalesceDelayNanos);
+            mAverageArrivalGapNanos += SMOOTHING * (gapNanos - mAverageArrivalGapNanos);
+            mAverageArrivalSize += SMOOTHING * (length - mAverageArrivalSize);
+        }
+        mLastArrivalNanos = now;
+        updateCoalesceDelay();
+    }
+
+    public synchronized void onChunkWritten(int length, long latencyNanos) {
+        latencyNanos = Math.max(latencyNanos, 1);
+        if (mWriteCount == 0) {
+            mAverageLatencyNanos = latencyNanos;
+        }
+        else {
+            mAverageLatencyNanos += SMOOTHING * (latencyNanos - mAverageLatencyNanos);
+        }
+        mMaxLatencyNanos = Math.max(mMaxLatencyNanos, latencyNanos);
+        mBytesWritten += length;
+        mWriteCount++;
+
+        if (latencyNanos > mTargetLatencyNanos) {
+            mChunkSize = Math.max(mMinChunkSize, mChunkSize / 2);
+        }
+        else if (length >= mChunkSize) {
+            double throughput = length * 1e9 / latencyNanos;
+            if (mAverageThroughput == 0) {
+                mAverageThroughput = throughput;
+            }
+            else {
+                mAverageThroughput += SMOOTHING * (throughput - mAverageThroughput);
+            }
+            // Bigger chunks than the link drains in half the target only add
+            // latency; move towards that size a bounded step at a time
+            long goodputChunkSize = (long) (mAverageThroughput * mTargetLatencyNanos / 2e9);
+            long chunkSize = Math.max(mChunkSize / 2,
+                    Math.min(mChunkSize + Math.max(1, mChunkSize / 4), goodputChunkSize));
+            mChunkSize = (int) Math.max(mMinChunkSize, Math.min(mMaxChunkSize, chunkSize));
+        }
+        updateCoalesceDelay();
+    }
+
+    private void updateCoalesceDelay() {
+        if (mLastArrivalGapNanos >= mMaxCoalesceDelayNanos
+                || mAverageArrivalGapNanos >= mMaxCoalesceDelayNanos) {
+            // Sparse traffic, or the first write after a pause: nothing is
+            // likely to join it in time
+            mCoalesceDelayNanos = 0;
+            return;
+        }
+
+        // Wait long enough to gather a full chunk at the arrival rate, keeping
+        // twice the average write latency of the target in reserve
+        double fillNanos = mAverageArrivalGapNanos * mChunkSize / Math.max(1, mAverageArrivalSize);
+        long budget = mTargetLatencyNanos - 2 * (long) mAverageLatencyNanos;
+        mCoalesceDelayNanos = Math.max(0, Math.min((long) fillNanos,
+                Math.min(mMaxCoalesceDelayNanos, budget)));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "chunk=" + mChunkSize + "B" +
+                " coalesce=" + mCoalesceDelayNanos / 1000 + "us" +
+                " latency=" + (long) mAverageLatencyNanos / 1000 + "us" +
+                " maxLatency=" + mMaxLatencyNanos / 1000 + "us" +
+                " throughput=" + (long) mAverageThroughput + "B/s" +
+                " arrivalGap=" + (long) mAverageArrivalGapNanos / 1000 + "us" +
+                " written=" + mBytesWritten + "B/" + mWriteCount;
+    }
+}
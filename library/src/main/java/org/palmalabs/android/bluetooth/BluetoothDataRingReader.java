@@ -0,0 +1,81 @@
+package org.palmalabs.android.bluetooth;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads inbound device frames from a data ring opened with
+ * {@link IBluetoothService#openDataRing}, in the client process. Frames are
+ * read straight from shared memory, without a Binder call per frame.
+ */
+public class BluetoothDataRingReader {
+    static final Charset ADDRESS_CHARSET = Charset.forName("US-ASCII");
+
+    private final MappedRingBuffer.Reader mReader;
+
+    /**
+     * Maps the ring and closes the descriptor, which is no longer needed.
+     */
+    public BluetoothDataRingReader(ParcelFileDescriptor ringDescriptor) throws IOException {
+        FileInputStream inputStream = new FileInputStream(ringDescriptor.getFileDescriptor());
+        try {
+            mReader = new MappedRingBuffer.Reader(inputStream.getChannel());
+        }
+        finally {
+            ringDescriptor.close();
+        }
+    }
+
+    /**
+     * Returns the next frame, or null if there is none yet.
+     */
+    public Frame next() {
+        byte[] body = mReader.next();
+        if (body == null) {
+            return null;
+        }
+        int addressLength = body[0] & 0xff;
+
+        return new Frame(new String(body, 1, addressLength, ADDRESS_CHARSET),
+                Arrays.copyOfRange(body, 1 + addressLength, body.length));
+    }
+
+    /**
+     * Returns how many bytes of frames were overwritten before this reader got
+     * to them, because it fell too far behind.
+     */
+    public long getLostBytes() {
+        return mReader.getLostBytes();
+    }
+
+    static byte[] encodePrefix(String deviceAddress) {
+        byte[] address = deviceAddress.getBytes(ADDRESS_CHARSET);
+        byte[] prefix = new byte[1 + address.length];
+        prefix[0] = (byte) address.length;
+        System.arraycopy(address, 0, prefix, 1, address.length);
+
+        return prefix;
+    }
+
+    public static class Frame {
+        private final String mDeviceAddress;
+        private final byte[] mData;
+
+        private Frame(String deviceAddress, byte[] data) {
+            mDeviceAddress = deviceAddress;
+            mData = data;
+        }
+
+        public String getDeviceAddress() {
+            return mDeviceAddress;
+        }
+
+        public byte[] getData() {
+            return mData;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.palmalabs.android.bluetooth;
 
+import android.app.Notification;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -8,18 +9,27 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteCallbackList;
+import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 public class BluetoothService extends Service {
     public static final String ACTION_DISCOVER_DEVICES = "org.palmalabs.android.bluetooth" +
@@ -34,11 +44,31 @@ public class BluetoothService extends Service {
             ".BluetoothService.ACTION_RFCOMM_WRITE";
     public static final String ACTION_RFCOMM_MONITOR = "org.palmalabs.android.bluetooth" +
             ".BluetoothService.ACTION_RFCOMM_MONITOR";
+    public static final String ACTION_START_TRAFFIC_CAPTURE = "org.palmalabs.android.bluetooth" +
+            ".BluetoothService.ACTION_START_TRAFFIC_CAPTURE";
+    public static final String ACTION_STOP_TRAFFIC_CAPTURE = "org.palmalabs.android.bluetooth" +
+            ".BluetoothService.ACTION_STOP_TRAFFIC_CAPTURE";
+    public static final String ACTION_KEEP_CONNECTIONS_ALIVE = "org.palmalabs.android.bluetooth" +
+            ".BluetoothService.ACTION_KEEP_CONNECTIONS_ALIVE";
+    public static final String ACTION_RELEASE_CONNECTIONS = "org.palmalabs.android.bluetooth" +
+            ".BluetoothService.ACTION_RELEASE_CONNECTIONS";
+    public static final String ACTION_BIND_REMOTE = "org.palmalabs.android.bluetooth" +
+            ".BluetoothService.ACTION_BIND_REMOTE";
     public static final String ACTION_RFCOMM_CONNECTED = "org.palmalabs.android.bluetooth" +
             ".BluetoothService.ACTION_RFCOMM_CONNECTED";
     public static final String ACTION_RFCOMM_DISCONNECTED = "org.palmalabs.android.bluetooth" +
             ".BluetoothService.ACTION_RFCOMM_DISCONNECTED";
     private static final String TAG = BluetoothService.class.getSimpleName();
+    private static final int DEFAULT_TRAFFIC_CAPTURE_SIZE = 4 * 1024 * 1024;
+    private static final int FOREGROUND_NOTIFICATION_ID = 0x4254;
+    private static final long DEFAULT_IDLE_TIMEOUT = 10 * 60 * 1000;
+    private static final long IDLE_CHECK_INTERVAL = 30 * 1000;
+    private static final int DEFAULT_DATA_RING_SIZE = 1024 * 1024;
+    private static final int MAX_DATA_RING_SIZE = 16 * 1024 * 1024;
+    private static final String PREFERENCES_NAME = "bluetooth_service";
+    private static final String PREF_KEEP_CONNECTIONS_ALIVE = "keep_connections_alive";
+    private static final String PREF_IDLE_TIMEOUT = "idle_timeout";
+    private static final long MONITOR_INTERVAL = 10 * 1000;
     public static final String ACTION_TASK_REMOVED = "org.palmalabs.android.bluetooth" +
             ".BluetoothService.ACTION_TASK_REMOVED";
     private BluetoothAdapter mBluetoothAdapter;
@@ -47,8 +77,106 @@ public class BluetoothService extends Service {
     private BluetoothBondListener mBondListener;
     private BluetoothRfcommConnectionListener mRfcommConnectionListener;
     private BluetoothRfcommWriteListener mRfcommWriteListener;
-    private Map<String, BluetoothSocket> mBluetoothSockets;
-    private boolean mMonitoring;
+    private volatile BluetoothTrafficCapture mTrafficCapture;
+    private volatile boolean mKeepingConnectionsAlive;
+    private volatile long mIdleTimeout;
+    private Thread mIdleEvictionThread;
+    private ScheduledExecutorService mDataRingNotifier;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final RfcommLinkManager mLinkManager = new RfcommLinkManager(
+            new RfcommLinkManager.Listener() {
+
+        @Override
+        public void onLinkLost(String deviceAddress) {
+            Log.d(TAG, "Disconnection detected from " + deviceAddress);
+            notifyDisconnected(mBluetoothAdapter.getRemoteDevice(deviceAddress));
+        }
+
+        @Override
+        public void onLinkStalled(String deviceAddress) {
+            Log.d(TAG, "Write stalled, recycled socket " + deviceAddress);
+            BluetoothDevice bluetoothDevice = mBluetoothAdapter.getRemoteDevice(deviceAddress);
+            if (mRfcommConnectionListener != null) {
+                mRfcommConnectionListener.onRfcommLinkStalled(bluetoothDevice);
+            }
+            notifyDisconnected(bluetoothDevice);
+        }
+
+        @Override
+        public void onLinkEvicted(String deviceAddress) {
+            Log.d(TAG, "Evicted idle socket " + deviceAddress);
+            notifyDisconnected(mBluetoothAdapter.getRemoteDevice(deviceAddress));
+        }
+    });
+    private final ConcurrentMap<IBinder, RemoteDataRing> mDataRings =
+            new ConcurrentHashMap<IBinder, RemoteDataRing>();
+    private final ConcurrentMap<String, RemoteDataSubscriber> mRemoteDataSubscribers =
+            new ConcurrentHashMap<String, RemoteDataSubscriber>();
+    private final RemoteCallbackList<IBluetoothDataCallback> mDataRingCallbacks =
+            new RemoteCallbackList<IBluetoothDataCallback>() {
+
+        @Override
+        public void onCallbackDied(IBluetoothDataCallback callback, Object cookie) {
+            Log.d(TAG, "Data ring client died");
+            closeDataRing(callback);
+        }
+    };
+
+    private final RemoteDataSubscriber.Listener mRemoteDataSubscriberListener =
+            new RemoteDataSubscriber.Listener() {
+
+        @Override
+        public void onSubscriberEnded(RemoteDataSubscriber subscriber) {
+            mRemoteDataSubscribers.remove(subscriber.getDeviceAddress(), subscriber);
+        }
+    };
+
+    private final IBluetoothService.Stub mRemoteBinder = new IBluetoothService.Stub() {
+
+        @Override
+        public void discoverDevices() {
+            mBluetoothAdapter.startDiscovery();
+        }
+
+        @Override
+        public void rfcommConnect(final String deviceAddress) {
+            // Binder threads must not reach in-process listeners, which expect
+            // to be called on the main thread like from onStartCommand
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    BluetoothService.this.rfcommConnect(
+                            mBluetoothAdapter.getRemoteDevice(deviceAddress));
+                }
+            });
+        }
+
+        @Override
+        public boolean isRfcommConnected(String deviceAddress) {
+            return isBluetoothSocketConnected(deviceAddress);
+        }
+
+        @Override
+        public boolean rfcommWrite(String deviceAddress, byte[] data, long timeout) {
+            return BluetoothService.this.rfcommWrite(deviceAddress, data, timeout, null) != null;
+        }
+
+        @Override
+        public ParcelFileDescriptor openDataRing(IBluetoothDataCallback callback, int capacity) {
+            return BluetoothService.this.openDataRing(callback,
+                    capacity > 0 ? Math.min(capacity, MAX_DATA_RING_SIZE) : DEFAULT_DATA_RING_SIZE);
+        }
+
+        @Override
+        public boolean subscribe(IBluetoothDataCallback callback, String deviceAddress) {
+            return subscribeDataRing(callback, deviceAddress);
+        }
+
+        @Override
+        public void closeDataRing(IBluetoothDataCallback callback) {
+            BluetoothService.this.closeDataRing(callback);
+        }
+    };
 
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
 
@@ -100,6 +228,10 @@ public class BluetoothService extends Service {
     @Override
     public IBinder onBind(Intent intent) {
         Log.d(TAG, "onBind");
+        // Bind intents come back from the system, so compare actions by value
+        if (ACTION_BIND_REMOTE.equals(intent.getAction())) {
+            return mRemoteBinder;
+        }
         return mBinder;
     }
 
@@ -110,7 +242,9 @@ public class BluetoothService extends Service {
 
         mBluetoothAdapter = mBluetoothAdapter.getDefaultAdapter();
 
-        mBluetoothSockets = new HashMap<String, BluetoothSocket>();
+        mLinkManager.start();
+
+        mDataRingNotifier = Executors.newSingleThreadScheduledExecutor();
 
         // Register broadcast receivers for Bluetooth events
         registerReceiver(mReceiver, new IntentFilter(BluetoothDevice.ACTION_FOUND));
@@ -122,6 +256,16 @@ public class BluetoothService extends Service {
     @Override
     public void onDestroy() {
         Log.d(TAG, "onDestroy");
+        releaseConnections();
+        mLinkManager.stop();
+        mDataRingCallbacks.kill();
+        for (RemoteDataRing dataRing : mDataRings.values()) {
+            dataRing.close();
+        }
+        mDataRings.clear();
+        mDataRingNotifier.shutdown();
+        stopTrafficCapture();
+        unregisterReceiver(mReceiver);
         super.onDestroy();
     }
 
@@ -129,18 +273,13 @@ public class BluetoothService extends Service {
     public void onRebind(Intent intent) {
         Log.d(TAG, "onRebind");
         super.onRebind(intent);
-
-        // Re-register broadcast receivers for Bluetooth events
-        registerReceiver(mReceiver, new IntentFilter(BluetoothDevice.ACTION_FOUND));
-        registerReceiver(mReceiver, new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED));
-        registerReceiver(mReceiver, new IntentFilter(BluetoothAdapter.ACTION_DISCOVERY_STARTED));
-        registerReceiver(mReceiver, new IntentFilter(BluetoothAdapter.ACTION_DISCOVERY_FINISHED));
     }
 
     @Override
     public boolean onUnbind(Intent intent) {
         Log.d(TAG, "onUnbind");
-        unregisterReceiver(mReceiver);
+        // Receivers stay registered until onDestroy, so connections kept alive
+        // without a bound client still see Bluetooth events
 
         return true;
     }
@@ -150,7 +289,19 @@ public class BluetoothService extends Service {
         Log.d(TAG, "onStartCommand");
 
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-        if (intent.getAction() == ACTION_DISCOVER_DEVICES) {
+        if (intent == null) {
+            // Restarted by the system after being killed. Sockets died with the
+            // process, but connections made from now on are kept alive again
+            SharedPreferences preferences = getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE);
+            if (preferences.getBoolean(PREF_KEEP_CONNECTIONS_ALIVE, false)) {
+                Log.d(TAG, "Restoring keep connections alive after restart");
+                keepConnectionsAlive(preferences.getLong(PREF_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT));
+                return START_STICKY;
+            }
+            stopSelf(startId);
+            return START_NOT_STICKY;
+        }
+        else if (intent.getAction() == ACTION_DISCOVER_DEVICES) {
             // Do a full discovery of devices
             mBluetoothAdapter.startDiscovery();
         }
@@ -190,40 +341,7 @@ public class BluetoothService extends Service {
         }
         else if (intent.getAction() == ACTION_RFCOMM_CONNECT) {
             Log.d(TAG, "RFCOMM connection requested to device = " + intent.getStringExtra("device_address"));
-            final BluetoothDevice bluetoothDevice = mBluetoothAdapter
-                    .getRemoteDevice(intent.getStringExtra("device_address"));
-            if (mRfcommConnectionListener != null) {
-                mRfcommConnectionListener.onRfcommConnectionStarted(bluetoothDevice);
-            }
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    BluetoothSocket bluetoothSocket = mBluetoothSockets.get(bluetoothDevice.getAddress());
-                    try {
-                        if (bluetoothSocket != null) {
-                            bluetoothSocket.close();
-                            bluetoothSocket = null;
-                        }
-                        bluetoothSocket = bluetoothDevice
-                                .createInsecureRfcommSocketToServiceRecord(UUID.fromString
-                                        ("00001101-0000-1000-8000-00805F9B34FB"));
-                        bluetoothSocket.connect();
-                        mBluetoothSockets.put(bluetoothDevice.getAddress(), bluetoothSocket);
-                        if (mRfcommConnectionListener != null) {
-                            mRfcommConnectionListener.onRfcommConnectionEstablished(bluetoothDevice);
-                        }
-                        sendBroadcast(new Intent(ACTION_RFCOMM_CONNECTED).putExtra
-                                ("bluetooth_device", bluetoothDevice));
-                    }
-                    catch (IOException e) {
-                        Log.d(TAG, "Error while creating RFCOMM socket: " + e.getMessage());
-                        if (mRfcommConnectionListener != null) {
-                            mRfcommConnectionListener.onRfcommConnectionError(bluetoothDevice);
-                        }
-                    }
-
-                }
-            }).start();
+            rfcommConnect(mBluetoothAdapter.getRemoteDevice(intent.getStringExtra("device_address")));
         }
         else if (intent.getAction() == ACTION_RFCOMM_WRITE) {
             Log.d(TAG, "RFCOMM write requested, data = " +
@@ -233,27 +351,37 @@ public class BluetoothService extends Service {
                 mRfcommWriteListener.onRfcommWriteStarted();
             }
 
-            final BluetoothDevice bluetoothDevice = mBluetoothAdapter
-                    .getRemoteDevice(intent.getStringExtra("device_address"));
-            BluetoothSocket bluetoothSocket = mBluetoothSockets.get(bluetoothDevice.getAddress());
-            if (bluetoothSocket != null) {
-                try {
-                    synchronized (bluetoothSocket.getOutputStream()) {
-                        bluetoothSocket.getOutputStream()
-                                .write(intent.getByteArrayExtra("data_bytes"));
-                    }
-                    if (mRfcommWriteListener != null) {
-                        mRfcommWriteListener.onRfcommWriteFinished();
-                    }
+            RfcommWriter.WriteHandle writeHandle = rfcommWrite(intent.getStringExtra("device_address"),
+                    intent.getByteArrayExtra("data_bytes"), intent.getLongExtra("write_timeout", 0),
+                    new RfcommWriter.Callback() {
+                // Writes complete on the writer or watchdog thread; the listener
+                // is called on the main thread, like when writes were synchronous
+                @Override
+                public void onWriteFinished() {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mRfcommWriteListener != null) {
+                                mRfcommWriteListener.onRfcommWriteFinished();
+                            }
+                        }
+                    });
                 }
-                catch (IOException e) {
+
+                @Override
+                public void onWriteError(IOException e) {
                     Log.d(TAG, "Error when writing to Bluetooth device: " + e.getMessage());
-                    if (mRfcommWriteListener != null) {
-                        mRfcommWriteListener.onRfcommWriteError();
-                    }
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mRfcommWriteListener != null) {
+                                mRfcommWriteListener.onRfcommWriteError();
+                            }
+                        }
+                    });
                 }
-            }
-            else {
+            });
+            if (writeHandle == null) {
                 if (mRfcommWriteListener != null) {
                     mRfcommWriteListener.onRfcommWriteError();
                 }
@@ -261,70 +389,310 @@ public class BluetoothService extends Service {
         }
         else if (intent.getAction() == ACTION_RFCOMM_MONITOR) {
             Log.d(TAG, "RFCOMM monitor requested");
-            final BluetoothDevice bluetoothDevice = mBluetoothAdapter
-                    .getRemoteDevice(intent.getStringExtra("device_address"));
-            mMonitoring = true;
-            final BluetoothSocket bluetoothSocket = mBluetoothSockets
-                    .get(bluetoothDevice.getAddress());
+            String deviceAddress = intent.getStringExtra("device_address");
+            if (!mLinkManager.monitor(deviceAddress, MONITOR_INTERVAL)) {
+                Log.d(TAG, "No RFCOMM link to monitor for " + deviceAddress);
+            }
+        }
+        else if (intent.getAction() == ACTION_START_TRAFFIC_CAPTURE) {
+            String capturePath = intent.getStringExtra("capture_file");
+            Log.d(TAG, "Traffic capture requested to " + capturePath);
+            if (capturePath == null) {
+                Log.d(TAG, "Error when starting traffic capture: no capture_file given");
+            }
+            else {
+                stopTrafficCapture();
+                try {
+                    mTrafficCapture = new BluetoothTrafficCapture(new File(capturePath),
+                            intent.getIntExtra("capture_size", DEFAULT_TRAFFIC_CAPTURE_SIZE));
+                    mLinkManager.setTrafficCapture(mTrafficCapture);
+                }
+                catch (IOException e) {
+                    Log.d(TAG, "Error when starting traffic capture: " + e.getMessage());
+                }
+                catch (IllegalArgumentException e) {
+                    Log.d(TAG, "Error when starting traffic capture: " + e.getMessage());
+                }
+            }
+        }
+        else if (intent.getAction() == ACTION_STOP_TRAFFIC_CAPTURE) {
+            Log.d(TAG, "Traffic capture stop requested");
+            stopTrafficCapture();
+        }
+        else if (intent.getAction() == ACTION_KEEP_CONNECTIONS_ALIVE) {
+            Log.d(TAG, "Keep connections alive requested");
+            keepConnectionsAlive(intent.getLongExtra("idle_timeout", DEFAULT_IDLE_TIMEOUT));
+        }
+        else if (intent.getAction() == ACTION_RELEASE_CONNECTIONS) {
+            Log.d(TAG, "Release connections requested");
+            releaseConnections();
+        }
+
+        return mKeepingConnectionsAlive ? START_STICKY : START_NOT_STICKY;
+    }
+
+    @Override
+    public void onTaskRemoved(Intent rootIntent) {
+        Log.d(TAG, "onTaskRemoved");
+        if (!mKeepingConnectionsAlive) {
+            closeAllSockets();
+        }
+        sendBroadcast(new Intent(ACTION_TASK_REMOVED));
+        super.onTaskRemoved(rootIntent);
+    }
+
+    private void closeAllSockets() {
+        mLinkManager.closeAll();
+    }
 
-            new Thread(new Runnable() {
+    private void rfcommConnect(final BluetoothDevice bluetoothDevice) {
+        if (mRfcommConnectionListener != null) {
+            mRfcommConnectionListener.onRfcommConnectionStarted(bluetoothDevice);
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mLinkManager.close(bluetoothDevice.getAddress());
+                    BluetoothSocket bluetoothSocket = bluetoothDevice
+                            .createInsecureRfcommSocketToServiceRecord(UUID.fromString
+                                    ("00001101-0000-1000-8000-00805F9B34FB"));
+                    bluetoothSocket.connect();
+                    mLinkManager.attach(bluetoothDevice.getAddress(), bluetoothSocket,
+                            bluetoothSocket.getInputStream(), bluetoothSocket.getOutputStream());
+                    if (mRfcommConnectionListener != null) {
+                        mRfcommConnectionListener.onRfcommConnectionEstablished(bluetoothDevice);
+                    }
+                    sendBroadcast(new Intent(ACTION_RFCOMM_CONNECTED).putExtra
+                            ("bluetooth_device", bluetoothDevice));
+                }
+                catch (IOException e) {
+                    Log.d(TAG, "Error while creating RFCOMM socket: " + e.getMessage());
+                    if (mRfcommConnectionListener != null) {
+                        mRfcommConnectionListener.onRfcommConnectionError(bluetoothDevice);
+                    }
+                }
+
+            }
+        }).start();
+    }
+
+    private ParcelFileDescriptor openDataRing(IBluetoothDataCallback callback, int capacity) {
+        closeDataRing(callback);
+        File file = null;
+        RemoteDataRing dataRing = null;
+        boolean opened = false;
+        try {
+            // The file is unlinked once opened so nothing outlives the mappings.
+            // It is still file-backed, so the kernel may write pages back to it
+            file = File.createTempFile("data_ring", null, getCacheDir());
+            dataRing = new RemoteDataRing(file, capacity, callback, mDataRingNotifier);
+            ParcelFileDescriptor ringDescriptor = ParcelFileDescriptor.open(file,
+                    ParcelFileDescriptor.MODE_READ_ONLY);
+            file.delete();
+            mDataRings.put(callback.asBinder(), dataRing);
+            mDataRingCallbacks.register(callback);
+            opened = true;
+
+            return ringDescriptor;
+        }
+        catch (IOException e) {
+            Log.d(TAG, "Error when opening data ring: " + e.getMessage());
+            return null;
+        }
+        finally {
+            // Also reached when the capacity is rejected as too small
+            if (!opened) {
+                if (dataRing != null) {
+                    dataRing.close();
+                }
+                if (file != null) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private boolean subscribeDataRing(IBluetoothDataCallback callback, String deviceAddress) {
+        RemoteDataRing dataRing = mDataRings.get(callback.asBinder());
+        if (dataRing == null) {
+            return false;
+        }
+
+        synchronized (mRemoteDataSubscribers) {
+            RemoteDataSubscriber subscriber = mRemoteDataSubscribers.get(deviceAddress);
+            if (subscriber != null && subscriber.addRing(dataRing)) {
+                return true;
+            }
+            RfcommInboundPublisher inboundPublisher = mLinkManager.getInboundPublisher(deviceAddress);
+            if (inboundPublisher == null) {
+                return false;
+            }
+            subscriber = new RemoteDataSubscriber(deviceAddress, mRemoteDataSubscriberListener);
+            mRemoteDataSubscribers.put(deviceAddress, subscriber);
+            // The publisher is unicast and ends the subscriber right away if an
+            // in-process subscriber already holds it
+            inboundPublisher.subscribe(subscriber);
+
+            return subscriber.addRing(dataRing);
+        }
+    }
+
+    private void closeDataRing(IBluetoothDataCallback callback) {
+        RemoteDataRing dataRing = mDataRings.remove(callback.asBinder());
+        mDataRingCallbacks.unregister(callback);
+        if (dataRing != null) {
+            synchronized (mRemoteDataSubscribers) {
+                for (RemoteDataSubscriber subscriber : mRemoteDataSubscribers.values()) {
+                    if (subscriber.removeRing(dataRing)) {
+                        // Nobody reads this device remotely any more, give the
+                        // publisher back to in-process subscribers
+                        mRemoteDataSubscribers.remove(subscriber.getDeviceAddress(), subscriber);
+                    }
+                }
+            }
+            dataRing.close();
+        }
+    }
+
+    private void notifyDisconnected(BluetoothDevice bluetoothDevice) {
+        if (mRfcommConnectionListener != null) {
+            mRfcommConnectionListener.onRfcommDisconnected(bluetoothDevice);
+        }
+        sendBroadcast(new Intent(ACTION_RFCOMM_DISCONNECTED).putExtra
+                ("bluetooth_device", bluetoothDevice));
+    }
+
+    private synchronized void keepConnectionsAlive(long idleTimeout) {
+        mIdleTimeout = idleTimeout;
+        getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE).edit()
+                .putBoolean(PREF_KEEP_CONNECTIONS_ALIVE, true)
+                .putLong(PREF_IDLE_TIMEOUT, idleTimeout)
+                .apply();
+        if (!mKeepingConnectionsAlive) {
+            mKeepingConnectionsAlive = true;
+            Notification notification = new NotificationCompat.Builder(this)
+                    .setSmallIcon(getApplicationInfo().icon)
+                    .setContentTitle(getString(R.string.bluetooth_connections_active))
+                    .setOngoing(true)
+                    .build();
+            startForeground(FOREGROUND_NOTIFICATION_ID, notification);
+        }
+
+        if (mIdleEvictionThread == null && idleTimeout > 0) {
+            mIdleEvictionThread = new Thread(new Runnable() {
                 @Override
                 public void run() {
-                    while (mMonitoring) {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        long idleTimeout = mIdleTimeout;
                         try {
-                            synchronized (bluetoothSocket.getOutputStream()) {
-                                bluetoothSocket.getOutputStream().write(0);
-                            }
-                            Thread.sleep(10000);
+                            Thread.sleep(idleTimeout > 0 ? Math.min(IDLE_CHECK_INTERVAL, idleTimeout)
+                                    : IDLE_CHECK_INTERVAL);
                         }
-                        catch (IOException e) {
-                            Log.d(TAG, "Disconnection detected from "
-                                    + bluetoothDevice.getAddress());
-                            if (mRfcommConnectionListener != null) {
-                                mRfcommConnectionListener.onRfcommDisconnected(bluetoothDevice);
-                            }
-                            sendBroadcast(new Intent(ACTION_RFCOMM_DISCONNECTED).putExtra
-                                    ("bluetooth_device", bluetoothDevice));
-                            try {
-                                bluetoothSocket.close();
-                                mBluetoothSockets.remove(bluetoothDevice.getAddress());
-                            }
-                            catch (IOException e1) {
-                                Log.d(TAG, "Error closing Bluetooth socket: " + e1.getMessage());
-                            }
+                        catch (InterruptedException e) {
                             return;
                         }
-                        catch (InterruptedException e) {
-                            Log.d(TAG, "Monitor thread interrupted");
+                        if (mIdleTimeout > 0) {
+                            mLinkManager.evictIdleLinks(mIdleTimeout);
                         }
                     }
                 }
-            }).start();
+            });
+            mIdleEvictionThread.start();
         }
+    }
 
-        return START_NOT_STICKY;
+    private synchronized void releaseConnections() {
+        getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE).edit()
+                .remove(PREF_KEEP_CONNECTIONS_ALIVE)
+                .remove(PREF_IDLE_TIMEOUT)
+                .apply();
+        if (mIdleEvictionThread != null) {
+            mIdleEvictionThread.interrupt();
+            mIdleEvictionThread = null;
+        }
+        if (mKeepingConnectionsAlive) {
+            mKeepingConnectionsAlive = false;
+            stopForeground(true);
+        }
     }
 
-    @Override
-    public void onTaskRemoved(Intent rootIntent) {
-        Log.d(TAG, "onTaskRemoved");
-        mMonitoring = false;
-        for (String deviceAddress : mBluetoothSockets.keySet()) {
-            BluetoothSocket bluetoothSocket = mBluetoothSockets.get(deviceAddress);
-            if (bluetoothSocket != null) {
-                try {
-                    Log.d(TAG, "Closing socket " + deviceAddress);
-                    bluetoothSocket.close();
-                }
-                catch (IOException e) {
-                    Log.d(TAG, "Closing socket error: " + e.getMessage());
-                }
+    private void stopTrafficCapture() {
+        BluetoothTrafficCapture trafficCapture = mTrafficCapture;
+        mTrafficCapture = null;
+        mLinkManager.setTrafficCapture(null);
+        if (trafficCapture != null) {
+            try {
+                trafficCapture.close();
+            }
+            catch (IOException e) {
+                Log.d(TAG, "Error when closing traffic capture: " + e.getMessage());
             }
-            mBluetoothSockets.remove(bluetoothSocket);
-            bluetoothSocket = null;
         }
-        sendBroadcast(new Intent(ACTION_TASK_REMOVED));
-        super.onTaskRemoved(rootIntent);
+    }
+
+    /**
+     * Returns a publisher of the chunks read from a connected device, or null if
+     * the device is not connected. Nothing is read until it is subscribed to.
+     */
+    public Flow.Publisher<byte[]> getInboundPublisher(String deviceAddress) {
+        return mLinkManager.getInboundPublisher(deviceAddress);
+    }
+
+    /**
+     * Sets how inbound publishers for devices connected from now on behave when
+     * their subscriber falls {@code bufferSize} frames behind.
+     */
+    public void setInboundOverflowStrategy(RfcommInboundPublisher.OverflowStrategy
+            overflowStrategy, int bufferSize) {
+        mLinkManager.setInboundOverflowStrategy(overflowStrategy, bufferSize);
+    }
+
+    /**
+     * Queues a write to a connected device and returns a handle that can cancel
+     * it, or null if the device is not connected. If the write is not done
+     * {@code timeout} milliseconds from now it fails; zero means no deadline.
+     * A write that already started when its deadline passes leaves a partial
+     * message on the link, so the link is then closed and reported through
+     * {@link BluetoothRfcommConnectionListener#onRfcommLinkStalled}, within
+     * about a second of the deadline.
+     */
+    public RfcommWriter.WriteHandle rfcommWrite(String deviceAddress, byte[] data, long timeout,
+            RfcommWriter.Callback callback) {
+        return mLinkManager.write(deviceAddress, data, timeout, callback);
+    }
+
+    /**
+     * Sets how long, in milliseconds, a single write may block before the link
+     * is considered stuck, closed and reported through
+     * {@link BluetoothRfcommConnectionListener#onRfcommLinkStalled}. The timeout
+     * must be positive.
+     */
+    public void setWriteStallTimeout(long stallTimeout) {
+        mLinkManager.setWriteStallTimeout(stallTimeout);
+    }
+
+    /**
+     * Returns the write tuner of a connected device, which exposes the current
+     * chunk size, coalescing delay and measured throughput, or null if the
+     * device is not connected.
+     */
+    public AdaptiveWriteTuner getWriteTuner(String deviceAddress) {
+        return mLinkManager.getWriteTuner(deviceAddress);
+    }
+
+    /**
+     * Sets the bounds the write tuner of devices connected from now on works
+     * within. Delay and latency are in milliseconds.
+     */
+    public void setWriteTuningBounds(int minChunkSize, int maxChunkSize, long maxCoalesceDelay,
+            long targetLatency) {
+        mLinkManager.setWriteTuningBounds(minChunkSize, maxChunkSize, maxCoalesceDelay,
+                targetLatency);
+    }
+
+    public boolean isKeepingConnectionsAlive() {
+        return mKeepingConnectionsAlive;
     }
 
     public BluetoothDiscoveryListener getDiscoveryListener() {
@@ -361,12 +729,7 @@ public class BluetoothService extends Service {
     }
 
     public boolean isBluetoothSocketConnected(String deviceAddress) {
-        BluetoothSocket bluetoothSocket = mBluetoothSockets.get(deviceAddress);
-        if (bluetoothSocket != null) {
-            return true;
-        }
-
-        return false;
+        return mLinkManager.isConnected(deviceAddress);
     }
 
     public List<BluetoothDevice> getPairedDevices() {
@@ -396,6 +759,7 @@ public class BluetoothService extends Service {
         public void onRfcommConnectionError(BluetoothDevice bluetoothDevice);
         public void onRfcommConnectionEstablished(BluetoothDevice bluetoothDevice);
         public void onRfcommDisconnected(BluetoothDevice bluetoothDevice);
+        public void onRfcommLinkStalled(BluetoothDevice bluetoothDevice);
     }
 
     public interface BluetoothRfcommWriteListener {
@@ -0,0 +1,119 @@
+package org.palmalabs.android.bluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records every chunk sent to or received from a device, with timestamps, into
+ * a {@link MappedRingBuffer}. Recording is a memory copy, so it is safe to call
+ * from the threads doing socket I/O.
+ */
+public class BluetoothTrafficCapture {
+    public static final byte DIRECTION_OUTBOUND = 0;
+    public static final byte DIRECTION_INBOUND = 1;
+
+    private static final Charset ADDRESS_CHARSET = Charset.forName("US-ASCII");
+    // direction, address length, nanoseconds since capture start
+    private static final int PREFIX_SIZE = 1 + 1 + 8;
+
+    private final MappedRingBuffer mRingBuffer;
+    private final long mStartNanos;
+    private final ThreadLocal<ByteBuffer> mPrefix = new ThreadLocal<ByteBuffer>();
+
+    public BluetoothTrafficCapture(File file, int capacity) throws IOException {
+        mRingBuffer = new MappedRingBuffer(file, capacity);
+        mStartNanos = System.nanoTime();
+    }
+
+    public void recordOutbound(String deviceAddress, byte[] data, int offset, int length) {
+        record(DIRECTION_OUTBOUND, deviceAddress, data, offset, length);
+    }
+
+    public void recordInbound(String deviceAddress, byte[] data, int offset, int length) {
+        record(DIRECTION_INBOUND, deviceAddress, data, offset, length);
+    }
+
+    public void close() throws IOException {
+        mRingBuffer.close();
+    }
+
+    private void record(byte direction, String deviceAddress, byte[] data, int offset, int length) {
+        byte[] address = deviceAddress.getBytes(ADDRESS_CHARSET);
+        ByteBuffer prefix = mPrefix.get();
+        if (prefix == null || prefix.capacity() != PREFIX_SIZE + address.length) {
+            prefix = ByteBuffer.allocate(PREFIX_SIZE + address.length).order(ByteOrder.LITTLE_ENDIAN);
+            mPrefix.set(prefix);
+        }
+        prefix.clear();
+        prefix.put(direction);
+        prefix.put((byte) address.length);
+        prefix.putLong(System.nanoTime() - mStartNanos);
+        prefix.put(address);
+        mRingBuffer.append(prefix.array(), data, offset, length);
+    }
+
+    /**
+     * Reads back every record still present in a capture file, oldest first.
+     */
+    public static List<Record> read(File file) throws IOException {
+        MappedRingBuffer.Reader reader = new MappedRingBuffer.Reader(file);
+        List<Record> records = new ArrayList<Record>();
+        byte[] body;
+        while ((body = reader.next()) != null) {
+            records.add(Record.decode(body));
+        }
+
+        return records;
+    }
+
+    public static class Record {
+        private final byte mDirection;
+        private final String mDeviceAddress;
+        private final long mTimestampNanos;
+        private final byte[] mData;
+
+        private Record(byte direction, String deviceAddress, long timestampNanos, byte[] data) {
+            mDirection = direction;
+            mDeviceAddress = deviceAddress;
+            mTimestampNanos = timestampNanos;
+            mData = data;
+        }
+
+        private static Record decode(byte[] body) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.remaining() < PREFIX_SIZE) {
+                throw new IOException("Truncated capture record");
+            }
+            byte direction = buffer.get();
+            int addressLength = buffer.get() & 0xff;
+            long timestampNanos = buffer.getLong();
+            byte[] address = new byte[addressLength];
+            buffer.get(address);
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+
+            return new Record(direction, new String(address, ADDRESS_CHARSET), timestampNanos, data);
+        }
+
+        public boolean isOutbound() {
+            return mDirection == DIRECTION_OUTBOUND;
+        }
+
+        public String getDeviceAddress() {
+            return mDeviceAddress;
+        }
+
+        public long getTimestampNanos() {
+            return mTimestampNanos;
+        }
+
+        public byte[] getData() {
+            return mData;
+        }
+    }
+}
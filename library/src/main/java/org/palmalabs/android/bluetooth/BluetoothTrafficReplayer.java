@@ -0,0 +1,73 @@
+package org.palmalabs.android.bluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Plays a traffic capture back into a {@link Target}, either with the original
+ * spacing between chunks or sped up, to reproduce and benchmark production
+ * traffic offline.
+ */
+public class BluetoothTrafficReplayer {
+    private final List<BluetoothTrafficCapture.Record> mRecords;
+    private double mSpeed = 1.0;
+
+    public BluetoothTrafficReplayer(File captureFile) throws IOException {
+        this(BluetoothTrafficCapture.read(captureFile));
+    }
+
+    public BluetoothTrafficReplayer(List<BluetoothTrafficCapture.Record> records) {
+        mRecords = records;
+    }
+
+    public double getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Sets the playback rate relative to the capture: 1 keeps the original
+     * timing, 10 plays ten times faster, and 0 plays as fast as possible.
+     */
+    public void setSpeed(double speed) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("Negative replay speed: " + speed);
+        }
+        mSpeed = speed;
+    }
+
+    /**
+     * Replays every record on the calling thread and returns the elapsed time
+     * in nanoseconds.
+     */
+    public long replay(Target target) throws IOException, InterruptedException {
+        long startNanos = System.nanoTime();
+        if (mRecords.isEmpty()) {
+            return 0;
+        }
+        long firstTimestamp = mRecords.get(0).getTimestampNanos();
+
+        for (BluetoothTrafficCapture.Record record : mRecords) {
+            if (mSpeed > 0) {
+                long dueNanos = (long) ((record.getTimestampNanos() - firstTimestamp) / mSpeed);
+                long waitNanos = dueNanos - (System.nanoTime() - startNanos);
+                if (waitNanos > 0) {
+                    Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                }
+            }
+            if (record.isOutbound()) {
+                target.onOutbound(record.getDeviceAddress(), record.getData());
+            }
+            else {
+                target.onInbound(record.getDeviceAddress(), record.getData());
+            }
+        }
+
+        return System.nanoTime() - startNanos;
+    }
+
+    public interface Target {
+        public void onOutbound(String deviceAddress, byte[] data) throws IOException;
+        public void onInbound(String deviceAddress, byte[] data) throws IOException;
+    }
+}
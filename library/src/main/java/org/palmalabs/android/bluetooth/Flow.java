@@ -0,0 +1,27 @@
+package org.palmalabs.android.bluetooth;
+
+/**
+ * Reactive Streams interfaces, mirroring {@code java.util.concurrent.Flow} which
+ * is not available on Android. The signatures match one to one, so adapting to
+ * Reactive Streams or RxJava is a thin wrapper.
+ */
+public final class Flow {
+    private Flow() {
+    }
+
+    public interface Publisher<T> {
+        public void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    public interface Subscriber<T> {
+        public void onSubscribe(Subscription subscription);
+        public void onNext(T item);
+        public void onError(Throwable throwable);
+        public void onComplete();
+    }
+
+    public interface Subscription {
+        public void request(long n);
+        public void cancel();
+    }
+}
@@ -0,0 +1,46 @@
+package org.palmalabs.android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers when each link last carried application traffic, so links that are
+ * genuinely unused can be evicted while the rest are kept open.
+ */
+public class IdleLinkTracker {
+    private final Map<String, Long> mLastActivity = new ConcurrentHashMap<String, Long>();
+
+    public void touch(String deviceAddress) {
+        mLastActivity.put(deviceAddress, System.currentTimeMillis());
+    }
+
+    public void forget(String deviceAddress) {
+        mLastActivity.remove(deviceAddress);
+    }
+
+    public long getIdleMillis(String deviceAddress) {
+        Long lastActivity = mLastActivity.get(deviceAddress);
+        if (lastActivity == null) {
+            return 0;
+        }
+
+        return System.currentTimeMillis() - lastActivity;
+    }
+
+    /**
+     * Returns the links that have been idle for at least {@code idleTimeoutMillis}.
+     */
+    public List<String> getIdleLinks(long idleTimeoutMillis) {
+        long now = System.currentTimeMillis();
+        List<String> idleLinks = new ArrayList<String>();
+        for (Map.Entry<String, Long> entry : mLastActivity.entrySet()) {
+            if (now - entry.getValue() >= idleTimeoutMillis) {
+                idleLinks.add(entry.getKey());
+            }
+        }
+
+        return idleLinks;
+    }
+}
@@ -0,0 +1,289 @@
+package org.palmalabs.android.bluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed-size ring of variable-length records kept in a memory-mapped file.
+ *
+ * Appending only copies bytes into the mapping, so it never waits on disk I/O.
+ * When the ring is full the oldest records are overwritten. Positions stored in
+ * the header are monotonic byte offsets, which lets a {@link Reader} notice when
+ * the writer has lapped it.
+ *
+ * Readers may live in another process. Each record carries a commit word,
+ * written after its bytes and checked again after they are copied, so a
+ * reader never returns a record that was not fully written or was overwritten
+ * while it was being read.
+ */
+public class MappedRingBuffer {
+    private static final int MAGIC = 0x42545242;
+    private static final int VERSION = 2;
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int OFFSET_CREATED = 16;
+    private static final int OFFSET_HEAD = 24;
+    private static final int OFFSET_TAIL = 32;
+    private static final int HEADER_SIZE = 64;
+
+    // A record starts with its total length, zero marking the unused space before
+    // a wrap, followed by a commit word derived from its position
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int OFFSET_RECORD_COMMIT = 4;
+    private static final int WRAP_MARKER = 0;
+
+    // The Java memory model says nothing about memory shared with another
+    // process. Atomic read-modify-write operations compile to full barriers,
+    // which also order the plain accesses to the mapping around them
+    private static final AtomicInteger sFence = new AtomicInteger();
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private long mHead;
+    private long mTail;
+
+    public MappedRingBuffer(File file, int capacity) throws IOException {
+        if (capacity < RECORD_HEADER_SIZE * 2) {
+            throw new IllegalArgumentException("Ring capacity too small: " + capacity);
+        }
+        if (capacity > Integer.MAX_VALUE - HEADER_SIZE) {
+            throw new IllegalArgumentException("Ring capacity too large: " + capacity);
+        }
+        mCapacity = capacity;
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(HEADER_SIZE + capacity);
+        mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        mBuffer.putInt(OFFSET_MAGIC, MAGIC);
+        mBuffer.putInt(OFFSET_VERSION, VERSION);
+        mBuffer.putInt(OFFSET_CAPACITY, capacity);
+        mBuffer.putLong(OFFSET_CREATED, System.currentTimeMillis());
+        mBuffer.putLong(OFFSET_TAIL, 0);
+        mBuffer.putLong(OFFSET_HEAD, 0);
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Appends one record made of {@code prefix} followed by {@code length} bytes
+     * of {@code data}. Returns false if the record can never fit in the ring.
+     */
+    public synchronized boolean append(byte[] prefix, byte[] data, int offset, int length) {
+        int recordLength = RECORD_HEADER_SIZE + prefix.length + length;
+        if (recordLength > mCapacity) {
+            return false;
+        }
+
+        int position = (int) (mHead % mCapacity);
+        if (position + recordLength > mCapacity) {
+            // Record would straddle the end of the ring, skip to the start
+            reclaim(mHead + (mCapacity - position));
+            if (mCapacity - position >= RECORD_HEADER_SIZE) {
+                writeRecordHeader(position, WRAP_MARKER);
+            }
+            mHead += mCapacity - position;
+            position = 0;
+        }
+        reclaim(mHead + recordLength);
+
+        // Void the old commit word before the bytes under it change
+        mBuffer.putInt(HEADER_SIZE + position + OFFSET_RECORD_COMMIT, ~commitOf(mHead));
+        fence();
+        mBuffer.putInt(HEADER_SIZE + position, recordLength);
+        mBuffer.position(HEADER_SIZE + position + RECORD_HEADER_SIZE);
+        mBuffer.put(prefix);
+        mBuffer.put(data, offset, length);
+        fence();
+        mBuffer.putInt(HEADER_SIZE + position + OFFSET_RECORD_COMMIT, commitOf(mHead));
+        mHead += recordLength;
+        fence();
+
+        // Publish the tail first so readers never see a head beyond valid data
+        mBuffer.putLong(OFFSET_TAIL, mTail);
+        mBuffer.putLong(OFFSET_HEAD, mHead);
+        return true;
+    }
+
+    public void close() throws IOException {
+        close(true);
+    }
+
+    /**
+     * Closes the ring, first writing it back to storage if {@code force} is
+     * set. Rings nobody reads after closing need not pay for the write.
+     */
+    public synchronized void close(boolean force) throws IOException {
+        if (force) {
+            mBuffer.force();
+        }
+        mFile.close();
+    }
+
+    private void writeRecordHeader(int position, int length) {
+        mBuffer.putInt(HEADER_SIZE + position + OFFSET_RECORD_COMMIT, ~commitOf(mHead));
+        fence();
+        mBuffer.putInt(HEADER_SIZE + position, length);
+        fence();
+        mBuffer.putInt(HEADER_SIZE + position + OFFSET_RECORD_COMMIT, commitOf(mHead));
+    }
+
+    // Drops the oldest records until writing up to limit won't overwrite them
+    private void reclaim(long limit) {
+        while (mTail < mHead && limit - mTail > mCapacity) {
+            mTail = nextRecord(mBuffer, mCapacity, mTail);
+        }
+        mBuffer.putLong(OFFSET_TAIL, mTail);
+        // Readers must see the new tail before the space it frees is reused
+        fence();
+    }
+
+    private static int commitOf(long position) {
+        return (int) position;
+    }
+
+    private static void fence() {
+        sFence.getAndIncrement();
+    }
+
+    private static long nextRecord(MappedByteBuffer buffer, int capacity, long position) {
+        int physical = (int) (position % capacity);
+        if (capacity - physical < RECORD_HEADER_SIZE) {
+            return position + (capacity - physical);
+        }
+        int length = buffer.getInt(HEADER_SIZE + physical);
+        if (length == WRAP_MARKER) {
+            return position + (capacity - physical);
+        }
+        return position + length;
+    }
+
+    /**
+     * Sequential reader over a ring file, which may be live. Records that the
+     * writer overwrote before they could be read are counted as lost.
+     */
+    public static class Reader {
+        private final MappedByteBuffer mBuffer;
+        private final int mCapacity;
+        private final long mCreatedTimeMillis;
+        private long mPosition;
+        private long mLostBytes;
+
+        public Reader(File file) throws IOException {
+            this(new RandomAccessFile(file, "r").getChannel(), true);
+        }
+
+        /**
+         * Maps the ring behind an open channel. The mapping stays valid after
+         * the channel is closed, which is left to the caller.
+         */
+        public Reader(FileChannel channel) throws IOException {
+            this(channel, false);
+        }
+
+        private Reader(FileChannel channel, boolean closeChannel) throws IOException {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(OFFSET_MAGIC) != MAGIC || header.getInt(OFFSET_VERSION) != VERSION) {
+                throw new IOException("Not a ring buffer file");
+            }
+            mCapacity = header.getInt(OFFSET_CAPACITY);
+            mCreatedTimeMillis = header.getLong(OFFSET_CREATED);
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE + mCapacity);
+            mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            mPosition = mBuffer.getLong(OFFSET_TAIL);
+            if (closeChannel) {
+                channel.close();
+            }
+        }
+
+        public long getCreatedTimeMillis() {
+            return mCreatedTimeMillis;
+        }
+
+        public long getLostBytes() {
+            return mLostBytes;
+        }
+
+        /**
+         * Skips everything written so far; the next record returned will be the
+         * first one appended after this call.
+         */
+        public void seekToEnd() {
+            mPosition = mBuffer.getLong(OFFSET_HEAD);
+        }
+
+        /**
+         * Returns the body of the next record, or null if the reader caught up
+         * with the writer or the next record is not visible yet.
+         */
+        public byte[] next() {
+            while (true) {
+                long head = mBuffer.getLong(OFFSET_HEAD);
+                fence();
+                long tail = mBuffer.getLong(OFFSET_TAIL);
+                if (mPosition < tail) {
+                    mLostBytes += tail - mPosition;
+                    mPosition = tail;
+                }
+                if (mPosition >= head) {
+                    return null;
+                }
+
+                int physical = (int) (mPosition % mCapacity);
+                if (mCapacity - physical < RECORD_HEADER_SIZE) {
+                    mPosition += mCapacity - physical;
+                    continue;
+                }
+                // The writer stores the commit word last, so reading it first
+                // guarantees the length and body read after it are at least as new
+                int commit = mBuffer.getInt(HEADER_SIZE + physical + OFFSET_RECORD_COMMIT);
+                fence();
+                int length = mBuffer.getInt(HEADER_SIZE + physical);
+                if (commit != commitOf(mPosition)) {
+                    if (mBuffer.getLong(OFFSET_TAIL) > mPosition) {
+                        // Overwritten underneath us, resync from the new tail
+                        continue;
+                    }
+                    // The head arrived before the record's bytes; try again later
+                    return null;
+                }
+                if (length == WRAP_MARKER) {
+                    mPosition += mCapacity - physical;
+                    continue;
+                }
+                if (length < RECORD_HEADER_SIZE || length > mCapacity - physical) {
+                    // Committed but unreadable, skip everything written so far
+                    mLostBytes += head - mPosition;
+                    mPosition = head;
+                    continue;
+                }
+
+                byte[] body = new byte[length - RECORD_HEADER_SIZE];
+                ByteBuffer source = mBuffer.duplicate();
+                source.position(HEADER_SIZE + physical + RECORD_HEADER_SIZE);
+                source.get(body);
+                fence();
+
+                // If the writer reclaimed this record while we copied it, discard the copy
+                if (mBuffer.getInt(HEADER_SIZE + physical + OFFSET_RECORD_COMMIT) != commit
+                        || mBuffer.getLong(OFFSET_TAIL) > mPosition) {
+                    continue;
+                }
+                mPosition += length;
+                return body;
+            }
+        }
+    }
+}
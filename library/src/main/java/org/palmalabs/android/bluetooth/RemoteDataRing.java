@@ -0,0 +1,74 @@
+package org.palmalabs.android.bluetooth;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Service side of a client process' data ring. Frames are appended to shared
+ * memory and the client is told about them at most once per notify interval.
+ */
+class RemoteDataRing {
+    private static final String TAG = RemoteDataRing.class.getSimpleName();
+    private static final long NOTIFY_INTERVAL = 10;
+
+    private final MappedRingBuffer mRingBuffer;
+    private final IBluetoothDataCallback mCallback;
+    private final ScheduledExecutorService mNotifier;
+    private final AtomicBoolean mNotifyPending = new AtomicBoolean();
+    private final Runnable mNotifyTask = new Runnable() {
+        @Override
+        public void run() {
+            mNotifyPending.set(false);
+            try {
+                mCallback.onDataAvailable();
+            }
+            catch (RemoteException e) {
+                Log.d(TAG, "Error notifying data ring client: " + e.getMessage());
+            }
+        }
+    };
+    private volatile boolean mClosed;
+
+    RemoteDataRing(File file, int capacity, IBluetoothDataCallback callback,
+            ScheduledExecutorService notifier) throws IOException {
+        mRingBuffer = new MappedRingBuffer(file, capacity);
+        mCallback = callback;
+        mNotifier = notifier;
+    }
+
+    void append(byte[] prefix, byte[] frame) {
+        if (mClosed) {
+            return;
+        }
+        mRingBuffer.append(prefix, frame, 0, frame.length);
+        if (mNotifyPending.compareAndSet(false, true)) {
+            mNotifier.schedule(mNotifyTask, NOTIFY_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void notifySubscriptionEnded(String deviceAddress) {
+        try {
+            mCallback.onSubscriptionEnded(deviceAddress);
+        }
+        catch (RemoteException e) {
+            Log.d(TAG, "Error notifying data ring client: " + e.getMessage());
+        }
+    }
+
+    void close() {
+        mClosed = true;
+        try {
+            // The file is already unlinked, syncing it would only wear the flash
+            mRingBuffer.close(false);
+        }
+        catch (IOException e) {
+            Log.d(TAG, "Error closing data ring: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.palmalabs.android.bluetooth;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Subscribes to one device's inbound publisher on behalf of every remote
+ * client interested in it, copying each frame into their data rings. Rings
+ * never block, so demand is unbounded and the configured overflow strategy
+ * has no effect here; a client that falls behind loses the oldest frames in
+ * its own ring. Once the last ring is removed the subscription is cancelled,
+ * which frees the publisher for other subscribers.
+ */
+class RemoteDataSubscriber implements Flow.Subscriber<byte[]> {
+    private final String mDeviceAddress;
+    private final byte[] mPrefix;
+    private final CopyOnWriteArrayList<RemoteDataRing> mRings =
+            new CopyOnWriteArrayList<RemoteDataRing>();
+    private final Listener mListener;
+    private Flow.Subscription mSubscription;
+    private boolean mEnded;
+
+    RemoteDataSubscriber(String deviceAddress, Listener listener) {
+        mDeviceAddress = deviceAddress;
+        mPrefix = BluetoothDataRingReader.encodePrefix(deviceAddress);
+        mListener = listener;
+    }
+
+    String getDeviceAddress() {
+        return mDeviceAddress;
+    }
+
+    /**
+     * Adds a ring to copy frames into. Returns false if the subscription has
+     * already ended, or was rejected by the publisher.
+     */
+    synchronized boolean addRing(RemoteDataRing ring) {
+        if (mEnded) {
+            return false;
+        }
+        mRings.addIfAbsent(ring);
+
+        return true;
+    }
+
+    /**
+     * Stops copying frames into a ring. Returns true if it was the last one and
+     * the subscription was cancelled.
+     */
+    boolean removeRing(RemoteDataRing ring) {
+        Flow.Subscription subscription;
+        synchronized (this) {
+            if (!mRings.remove(ring) || !mRings.isEmpty() || mEnded) {
+                return false;
+            }
+            mEnded = true;
+            subscription = mSubscription;
+        }
+        if (subscription != null) {
+            subscription.cancel();
+        }
+
+        return true;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        boolean ended;
+        synchronized (this) {
+            mSubscription = subscription;
+            ended = mEnded;
+        }
+        if (ended) {
+            subscription.cancel();
+            return;
+        }
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(byte[] frame) {
+        for (RemoteDataRing ring : mRings) {
+            ring.append(mPrefix, frame);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        onComplete();
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (this) {
+            if (mEnded) {
+                return;
+            }
+            mEnded = true;
+        }
+        mListener.onSubscriberEnded(this);
+        for (RemoteDataRing ring : mRings) {
+            ring.notifySubscriptionEnded(mDeviceAddress);
+        }
+        mRings.clear();
+    }
+
+    interface Listener {
+        void onSubscriberEnded(RemoteDataSubscriber subscriber);
+    }
+}
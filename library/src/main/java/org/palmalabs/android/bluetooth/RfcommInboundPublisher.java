@@ -0,0 +1,337 @@
+package org.palmalabs.android.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Publishes the chunks read from a device's input stream with demand-based
+ * backpressure. There is one subscriber at a time; once it cancels, another
+ * may subscribe and carries on with the buffered data. The stream is not read
+ * while nobody is subscribed.
+ *
+ * With {@link OverflowStrategy#BUFFER} the reader stops pulling from the stream
+ * once the buffer is full, so RFCOMM flow control throttles the peer. The drop
+ * strategies keep reading and discard frames instead.
+ */
+public class RfcommInboundPublisher implements Flow.Publisher<byte[]> {
+    private static final int READ_BUFFER_SIZE = 1024;
+
+    public enum OverflowStrategy {
+        BUFFER,
+        DROP_OLDEST,
+        DROP_NEWEST
+    }
+
+    private final String mDeviceAddress;
+    private final InputStream mInputStream;
+    private final OverflowStrategy mOverflowStrategy;
+    private final int mBufferSize;
+    private final ArrayDeque<byte[]> mFrames;
+    private FrameObserver mFrameObserver;
+    private Flow.Subscriber<? super byte[]> mSubscriber;
+    private Flow.Subscription mSubscription;
+    // Holds back signals until the subscriber has its subscription
+    private boolean mSubscribing;
+    private long mRequested;
+    // Ends the current subscription alone, after a non-positive request
+    private Throwable mSubscriberError;
+    private long mDroppedFrames;
+    private boolean mReading;
+    private boolean mDraining;
+    // No further subscribers are accepted
+    private boolean mClosed;
+    // Terminal signal waiting for the buffer to drain; null error means completion
+    private boolean mDone;
+    private Throwable mError;
+
+    public RfcommInboundPublisher(String deviceAddress, InputStream inputStream,
+            OverflowStrategy overflowStrategy, int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+        }
+        mDeviceAddress = deviceAddress;
+        mInputStream = inputStream;
+        mOverflowStrategy = overflowStrategy;
+        mBufferSize = bufferSize;
+        mFrames = new ArrayDeque<byte[]>(bufferSize);
+    }
+
+    public String getDeviceAddress() {
+        return mDeviceAddress;
+    }
+
+    public OverflowStrategy getOverflowStrategy() {
+        return mOverflowStrategy;
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    public synchronized long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * Sets a callback that sees every frame as it is read, before buffering.
+     * It runs on the reader thread and must not block.
+     */
+    public synchronized void setFrameObserver(FrameObserver frameObserver) {
+        mFrameObserver = frameObserver;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super byte[]> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber is null");
+        }
+        Flow.Subscription subscription = new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                RfcommInboundPublisher.this.request(this, n);
+            }
+
+            @Override
+            public void cancel() {
+                synchronized (RfcommInboundPublisher.this) {
+                    if (mSubscription == this) {
+                        detach();
+                    }
+                }
+            }
+        };
+        boolean accepted = false;
+        boolean startReading = false;
+        boolean closed;
+        synchronized (this) {
+            closed = mClosed;
+            if (mSubscriber == null && !mClosed) {
+                mSubscriber = subscriber;
+                mSubscription = subscription;
+                mSubscribing = true;
+                mRequested = 0;
+                accepted = true;
+                startReading = !mReading;
+                mReading = true;
+                notifyAll();
+            }
+        }
+        if (!accepted) {
+            // Already subscribed or closed, reject per Reactive Streams rule 1.9
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Inbound publisher for " +
+                    mDeviceAddress + (closed ? " is closed" : " already has a subscriber")));
+            return;
+        }
+
+        subscriber.onSubscribe(subscription);
+        synchronized (this) {
+            if (mSubscription == subscription) {
+                mSubscribing = false;
+            }
+        }
+        if (startReading) {
+            Thread readerThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    read();
+                }
+            }, "RfcommInboundPublisher-" + mDeviceAddress);
+            readerThread.start();
+        }
+        drain();
+    }
+
+    /**
+     * Stops publishing because the socket is being closed on purpose. The read
+     * error that follows is reported to the subscriber as completion.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    private void read() {
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        try {
+            while (true) {
+                FrameObserver frameObserver;
+                synchronized (this) {
+                    // Park while nobody is subscribed, or while the buffer is full
+                    while (!mClosed && (mSubscriber == null
+                            || mOverflowStrategy == OverflowStrategy.BUFFER
+                            && mFrames.size() >= mBufferSize)) {
+                        wait();
+                    }
+                    if (mClosed) {
+                        break;
+                    }
+                    frameObserver = mFrameObserver;
+                }
+
+                int length = mInputStream.read(buffer);
+                if (length < 0) {
+                    break;
+                }
+                byte[] frame = Arrays.copyOf(buffer, length);
+                if (frameObserver != null) {
+                    frameObserver.onFrameRead(mDeviceAddress, frame);
+                }
+                enqueue(frame);
+            }
+            terminate(null);
+        }
+        catch (IOException e) {
+            terminate(e);
+        }
+        catch (InterruptedException e) {
+            terminate(e);
+        }
+    }
+
+    private void enqueue(byte[] frame) {
+        synchronized (this) {
+            if (mClosed && mSubscriber == null) {
+                return;
+            }
+            if (mFrames.size() >= mBufferSize) {
+                mDroppedFrames++;
+                if (mOverflowStrategy == OverflowStrategy.DROP_NEWEST) {
+                    return;
+                }
+                mFrames.pollFirst();
+            }
+            mFrames.addLast(frame);
+        }
+        drain();
+    }
+
+    private void terminate(Throwable error) {
+        synchronized (this) {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            mError = mClosed ? null : error;
+            if (mSubscriber == null) {
+                // Nobody to tell, the link is gone for later subscribers
+                mClosed = true;
+                mFrames.clear();
+            }
+        }
+        drain();
+    }
+
+    // Ends the current subscription and parks the reader until the next one,
+    // which gets the frames still buffered. Called with this locked
+    private void detach() {
+        mSubscriber = null;
+        mSubscription = null;
+        mSubscribing = false;
+        mRequested = 0;
+        mSubscriberError = null;
+        if (mDone) {
+            mClosed = true;
+        }
+        notifyAll();
+    }
+
+    private void request(Flow.Subscription subscription, long n) {
+        synchronized (this) {
+            if (mSubscription != subscription) {
+                return;
+            }
+            if (n <= 0) {
+                // Rule 3.9: a non-positive request is answered with onError
+                if (mSubscriberError == null) {
+                    mSubscriberError = new IllegalArgumentException("Non-positive request: " + n);
+                }
+            }
+            else {
+                mRequested += n;
+                if (mRequested < 0) {
+                    mRequested = Long.MAX_VALUE;
+                }
+            }
+        }
+        drain();
+    }
+
+    // Delivers buffered frames while there is demand. Only one thread drains at a
+    // time, so signals to the subscriber are never concurrent
+    private void drain() {
+        synchronized (this) {
+            if (mDraining || mSubscribing || mSubscriber == null) {
+                return;
+            }
+            mDraining = true;
+        }
+
+        while (true) {
+            Flow.Subscriber<? super byte[]> subscriber;
+            byte[] frame = null;
+            Throwable error = null;
+            synchronized (this) {
+                subscriber = mSubscriber;
+                if (subscriber == null || mSubscribing) {
+                    // Cancelled while draining, or replaced by a subscriber that
+                    // does not have its subscription yet
+                    mDraining = false;
+                    return;
+                }
+                if (mSubscriberError != null) {
+                    // Only this subscription fails, the link stays up for the next one
+                    error = mSubscriberError;
+                    detach();
+                    mDraining = false;
+                }
+                else if (mRequested > 0 && !mFrames.isEmpty()) {
+                    frame = mFrames.pollFirst();
+                    if (mRequested != Long.MAX_VALUE) {
+                        mRequested--;
+                    }
+                    notifyAll();
+                }
+                else if (mDone && mFrames.isEmpty()) {
+                    // Terminal state, nobody else may subscribe afterwards
+                    error = mError;
+                    mSubscriber = null;
+                    mSubscription = null;
+                    mClosed = true;
+                    mDraining = false;
+                }
+                else {
+                    mDraining = false;
+                    return;
+                }
+            }
+
+            if (frame != null) {
+                subscriber.onNext(frame);
+            }
+            else {
+                if (error != null) {
+                    subscriber.onError(error);
+                }
+                else {
+                    subscriber.onComplete();
+                }
+                return;
+            }
+        }
+    }
+
+    public interface FrameObserver {
+        public void onFrameRead(String deviceAddress, byte[] frame);
+    }
+}
@@ -0,0 +1,349 @@
+package org.palmalabs.android.bluetooth;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Owns the connected links: for each device the socket, its inbound publisher,
+ * its writer, its heartbeat monitor, idle tracking and the write watchdog. It
+ * only deals with streams, so the same connection, write and monitor logic the
+ * service runs can be driven against simulated sockets on a plain JVM.
+ */
+public class RfcommLinkManager {
+    public static final long DEFAULT_WRITE_STALL_TIMEOUT = 15 * 1000;
+    public static final int DEFAULT_INBOUND_BUFFER_SIZE = 64;
+
+    private static final long WRITE_WATCHDOG_INTERVAL = 1000;
+    private static final byte[] HEARTBEAT = new byte[] { 0 };
+
+    private final ConcurrentMap<String, Link> mLinks = new ConcurrentHashMap<String, Link>();
+    private final IdleLinkTracker mIdleLinkTracker = new IdleLinkTracker();
+    private final RfcommWriteWatchdog mWriteWatchdog;
+    private final Listener mListener;
+    private volatile BluetoothTrafficCapture mTrafficCapture;
+    private volatile RfcommInboundPublisher.OverflowStrategy mInboundOverflowStrategy =
+            RfcommInboundPublisher.OverflowStrategy.BUFFER;
+    private volatile int mInboundBufferSize = DEFAULT_INBOUND_BUFFER_SIZE;
+    private volatile int mWriteMinChunkSize = AdaptiveWriteTuner.DEFAULT_MIN_CHUNK_SIZE;
+    private volatile int mWriteMaxChunkSize = AdaptiveWriteTuner.DEFAULT_MAX_CHUNK_SIZE;
+    private volatile long mWriteMaxCoalesceDelay = AdaptiveWriteTuner.DEFAULT_MAX_COALESCE_DELAY;
+    private volatile long mWriteTargetLatency = AdaptiveWriteTuner.DEFAULT_TARGET_LATENCY;
+
+    private final RfcommInboundPublisher.FrameObserver mInboundFrameObserver =
+            new RfcommInboundPublisher.FrameObserver() {
+
+        @Override
+        public void onFrameRead(String deviceAddress, byte[] frame) {
+            BluetoothTrafficCapture trafficCapture = mTrafficCapture;
+            if (trafficCapture != null) {
+                trafficCapture.recordInbound(deviceAddress, frame, 0, frame.length);
+            }
+            mIdleLinkTracker.touch(deviceAddress);
+        }
+    };
+
+    private final RfcommWriter.ChunkObserver mOutboundChunkObserver =
+            new RfcommWriter.ChunkObserver() {
+
+        @Override
+        public void onChunkWritten(String deviceAddress, byte[] data, int offset, int length) {
+            BluetoothTrafficCapture trafficCapture = mTrafficCapture;
+            if (trafficCapture != null) {
+                trafficCapture.recordOutbound(deviceAddress, data, offset, length);
+            }
+        }
+    };
+
+    public RfcommLinkManager(Listener listener) {
+        mListener = listener;
+        mWriteWatchdog = new RfcommWriteWatchdog(WRITE_WATCHDOG_INTERVAL,
+                DEFAULT_WRITE_STALL_TIMEOUT, new RfcommWriteWatchdog.Listener() {
+            @Override
+            public void onWriterStalled(RfcommWriter writer) {
+                Link link = mLinks.get(writer.getDeviceAddress());
+                if (link != null && link.mWriter == writer && remove(link)) {
+                    // Closing the socket unblocks the write stuck on it
+                    link.close();
+                    mListener.onLinkStalled(link.mDeviceAddress);
+                }
+            }
+        });
+    }
+
+    public void start() {
+        mWriteWatchdog.start();
+    }
+
+    /**
+     * Stops the watchdog and closes every link without reporting them.
+     */
+    public void stop() {
+        mWriteWatchdog.stop();
+        closeAll();
+    }
+
+    /**
+     * Takes over a freshly connected socket. A link already open to the same
+     * device is closed first, without being reported.
+     */
+    public void attach(String deviceAddress, Closeable socket, InputStream inputStream,
+            OutputStream outputStream) {
+        close(deviceAddress);
+
+        RfcommInboundPublisher inboundPublisher = new RfcommInboundPublisher(deviceAddress,
+                inputStream, mInboundOverflowStrategy, mInboundBufferSize);
+        inboundPublisher.setFrameObserver(mInboundFrameObserver);
+        RfcommWriter writer = new RfcommWriter(deviceAddress, outputStream,
+                new AdaptiveWriteTuner(mWriteMinChunkSize, mWriteMaxChunkSize,
+                        mWriteMaxCoalesceDelay, mWriteTargetLatency));
+        writer.setChunkObserver(mOutboundChunkObserver);
+
+        Link link = new Link(deviceAddress, socket, inboundPublisher, writer);
+        mLinks.put(deviceAddress, link);
+        mIdleLinkTracker.touch(deviceAddress);
+        mWriteWatchdog.watch(writer);
+    }
+
+    public boolean isConnected(String deviceAddress) {
+        return mLinks.containsKey(deviceAddress);
+    }
+
+    public List<String> getConnectedDevices() {
+        return new ArrayList<String>(mLinks.keySet());
+    }
+
+    /**
+     * Returns the socket of the open link to a device, or null. Useful to tell
+     * whether a link is still the one a caller started working with.
+     */
+    public Closeable getSocket(String deviceAddress) {
+        Link link = mLinks.get(deviceAddress);
+        if (link == null) {
+            return null;
+        }
+
+        return link.mSocket;
+    }
+
+    public RfcommInboundPublisher getInboundPublisher(String deviceAddress) {
+        Link link = mLinks.get(deviceAddress);
+        if (link == null) {
+            return null;
+        }
+
+        return link.mInboundPublisher;
+    }
+
+    public AdaptiveWriteTuner getWriteTuner(String deviceAddress) {
+        Link link = mLinks.get(deviceAddress);
+        if (link == null) {
+            return null;
+        }
+
+        return link.mWriter.getTuner();
+    }
+
+    /**
+     * Queues application data for a device, or returns null if it is not
+     * connected. Timeout is in milliseconds, zero meaning no deadline; a
+     * write that misses it after it started gets its link recycled as stalled.
+     */
+    public RfcommWriter.WriteHandle write(String deviceAddress, byte[] data, long timeout,
+            RfcommWriter.Callback callback) {
+        Link link = mLinks.get(deviceAddress);
+        if (link == null) {
+            return null;
+        }
+        mIdleLinkTracker.touch(deviceAddress);
+
+        return link.mWriter.write(data, timeout, callback);
+    }
+
+    /**
+     * Queues a heartbeat byte for a device. If it cannot be written the link is
+     * closed and reported as lost. Heartbeats do not count as activity for idle
+     * eviction. Returns false if the device is not connected.
+     */
+    public boolean heartbeat(String deviceAddress) {
+        final Link link = mLinks.get(deviceAddress);
+        if (link == null) {
+            return false;
+        }
+
+        // Heartbeats queue behind pending data, so a busy link is not starved
+        link.mWriter.write(HEARTBEAT, new RfcommWriter.Callback() {
+            @Override
+            public void onWriteFinished() {
+            }
+
+            @Override
+            public void onWriteError(IOException e) {
+                // Links closed on purpose were already removed and are not reported
+                if (remove(link)) {
+                    link.close();
+                    mListener.onLinkLost(link.mDeviceAddress);
+                }
+            }
+        });
+
+        return true;
+    }
+
+    /**
+     * Heartbeats the link to a device every {@code interval} milliseconds from
+     * a dedicated thread, so a dead link is noticed and reported as lost. The
+     * monitor ends with the link. A link has at most one monitor, so asking
+     * again does nothing. Returns false if the device is not connected.
+     */
+    public boolean monitor(String deviceAddress, final long interval) {
+        final Link link = mLinks.get(deviceAddress);
+        if (link == null) {
+            return false;
+        }
+
+        synchronized (link) {
+            if (link.mMonitor == null && !link.mClosed) {
+                link.mMonitor = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Stop once the link is closed or replaced by a new connection
+                        while (mLinks.get(link.mDeviceAddress) == link) {
+                            heartbeat(link.mDeviceAddress);
+                            try {
+                                Thread.sleep(interval);
+                            }
+                            catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                    }
+                }, "RfcommMonitor-" + deviceAddress);
+                link.mMonitor.start();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Closes the link to a device without reporting it.
+     */
+    public void close(String deviceAddress) {
+        Link link = mLinks.get(deviceAddress);
+        if (link != null && remove(link)) {
+            link.close();
+        }
+    }
+
+    public void closeAll() {
+        for (String deviceAddress : mLinks.keySet()) {
+            close(deviceAddress);
+        }
+    }
+
+    /**
+     * Closes links that carried no application traffic for
+     * {@code idleTimeout} milliseconds and reports each one as evicted.
+     */
+    public void evictIdleLinks(long idleTimeout) {
+        for (String deviceAddress : mIdleLinkTracker.getIdleLinks(idleTimeout)) {
+            Link link = mLinks.get(deviceAddress);
+            if (link == null) {
+                mIdleLinkTracker.forget(deviceAddress);
+            }
+            else if (remove(link)) {
+                link.close();
+                mListener.onLinkEvicted(deviceAddress);
+            }
+        }
+    }
+
+    public void setTrafficCapture(BluetoothTrafficCapture trafficCapture) {
+        mTrafficCapture = trafficCapture;
+    }
+
+    public void setInboundOverflowStrategy(RfcommInboundPublisher.OverflowStrategy
+            overflowStrategy, int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+        }
+        mInboundOverflowStrategy = overflowStrategy;
+        mInboundBufferSize = bufferSize;
+    }
+
+    public void setWriteTuningBounds(int minChunkSize, int maxChunkSize, long maxCoalesceDelay,
+            long targetLatency) {
+        if (minChunkSize < 1 || maxChunkSize < minChunkSize) {
+            throw new IllegalArgumentException("Invalid chunk size bounds: " + minChunkSize +
+                    ".." + maxChunkSize);
+        }
+        mWriteMinChunkSize = minChunkSize;
+        mWriteMaxChunkSize = maxChunkSize;
+        mWriteMaxCoalesceDelay = maxCoalesceDelay;
+        mWriteTargetLatency = targetLatency;
+    }
+
+    public void setWriteStallTimeout(long stallTimeout) {
+        mWriteWatchdog.setStallTimeout(stallTimeout);
+    }
+
+    // Only the caller that removes a link gets to close and report it
+    private boolean remove(Link link) {
+        if (!mLinks.remove(link.mDeviceAddress, link)) {
+            return false;
+        }
+        mWriteWatchdog.unwatch(link.mWriter);
+        if (!mLinks.containsKey(link.mDeviceAddress)) {
+            mIdleLinkTracker.forget(link.mDeviceAddress);
+        }
+
+        return true;
+    }
+
+    private static class Link {
+        final String mDeviceAddress;
+        final Closeable mSocket;
+        final RfcommInboundPublisher mInboundPublisher;
+        final RfcommWriter mWriter;
+        // Guarded by this
+        Thread mMonitor;
+        boolean mClosed;
+
+        Link(String deviceAddress, Closeable socket, RfcommInboundPublisher inboundPublisher,
+                RfcommWriter writer) {
+            mDeviceAddress = deviceAddress;
+            mSocket = socket;
+            mInboundPublisher = inboundPublisher;
+            mWriter = writer;
+        }
+
+        void close() {
+            synchronized (this) {
+                mClosed = true;
+                if (mMonitor != null) {
+                    mMonitor.interrupt();
+                }
+            }
+            mInboundPublisher.close();
+            mWriter.close();
+            try {
+                mSocket.close();
+            }
+            catch (IOException e) {
+                // Nothing left to do with a socket that fails to close
+            }
+        }
+    }
+
+    public interface Listener {
+        public void onLinkLost(String deviceAddress);
+        public void onLinkStalled(String deviceAddress);
+        public void onLinkEvicted(String deviceAddress);
+    }
+}
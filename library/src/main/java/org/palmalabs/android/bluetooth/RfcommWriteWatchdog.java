@@ -0,0 +1,103 @@
+package org.palmalabs.android.bluetooth;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Periodically checks a set of writers, expiring writes past their deadline
+ * and reporting writers stuck inside a single write call, which happens when
+ * the peer stops reading. A writer whose write missed its deadline after it
+ * had started is reported as stuck too, since its link carries a partial
+ * write.
+ */
+public class RfcommWriteWatchdog {
+    private final CopyOnWriteArrayList<RfcommWriter> mWriters =
+            new CopyOnWriteArrayList<RfcommWriter>();
+    private final long mCheckInterval;
+    private final Listener mListener;
+    private volatile long mStallTimeout;
+    private Thread mThread;
+
+    /**
+     * @param checkInterval time between checks, in milliseconds
+     * @param stallTimeout how long a write call may block before the writer is
+     *                     reported as stalled, in milliseconds
+     */
+    public RfcommWriteWatchdog(long checkInterval, long stallTimeout, Listener listener) {
+        checkStallTimeout(stallTimeout);
+        mCheckInterval = checkInterval;
+        mStallTimeout = stallTimeout;
+        mListener = listener;
+    }
+
+    public long getStallTimeout() {
+        return mStallTimeout;
+    }
+
+    public void setStallTimeout(long stallTimeout) {
+        checkStallTimeout(stallTimeout);
+        mStallTimeout = stallTimeout;
+    }
+
+    public void watch(RfcommWriter writer) {
+        mWriters.addIfAbsent(writer);
+    }
+
+    public void unwatch(RfcommWriter writer) {
+        mWriters.remove(writer);
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        Thread.sleep(mCheckInterval);
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    check();
+                }
+            }
+        }, "RfcommWriteWatchdog");
+        mThread.start();
+    }
+
+    public synchronized void stop() {
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+
+    /**
+     * Runs one round of checks on the calling thread.
+     */
+    public void check() {
+        long stallTimeoutNanos = mStallTimeout * 1000000;
+        for (RfcommWriter writer : mWriters) {
+            boolean startedWriteExpired = writer.expireOverdueWrites();
+            if (startedWriteExpired || writer.getBlockedNanos() > stallTimeoutNanos) {
+                // Report once; the listener is expected to close the link
+                mWriters.remove(writer);
+                mListener.onWriterStalled(writer);
+            }
+        }
+    }
+
+    // An idle writer reports zero blocked time, so anything but a positive
+    // timeout would report healthy writers as stalled
+    private static void checkStallTimeout(long stallTimeout) {
+        if (stallTimeout <= 0) {
+            throw new IllegalArgumentException("Stall timeout must be positive: " + stallTimeout);
+        }
+    }
+
+    public interface Listener {
+        public void onWriterStalled(RfcommWriter writer);
+    }
+}
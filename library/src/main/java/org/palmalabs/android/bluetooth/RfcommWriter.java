@@ -0,0 +1,359 @@
+package org.palmalabs.android.bluetooth;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Writes to a device from a dedicated thread, splitting large writes and
+ * coalescing small ones into chunks sized by an {@link AdaptiveWriteTuner}.
+ *
+ * Callers never block on the socket. Each write reports completion once its
+ * last byte has been handed to the output stream, or fails exactly once if it
+ * is cancelled, misses its deadline or the link breaks. A write that misses
+ * its deadline after it started fails too, but only once
+ * {@link #expireOverdueWrites()} runs; the link then carries a partial write
+ * and must be closed.
+ */
+public class RfcommWriter {
+    private final String mDeviceAddress;
+    private final OutputStream mOutputStream;
+    private final AdaptiveWriteTuner mTuner;
+    private final ArrayDeque<WriteHandle> mRequests = new ArrayDeque<WriteHandle>();
+    // Writes whose last bytes are in the chunk being written
+    private final List<WriteHandle> mInFlight = new ArrayList<WriteHandle>();
+    private final byte[] mChunk;
+    private final Thread mThread;
+    private ChunkObserver mChunkObserver;
+    private int mPendingBytes;
+    private boolean mClosed;
+    // When the write call in progress started, zero while the thread is not writing
+    private volatile long mWriteStartNanos;
+
+    public RfcommWriter(String deviceAddress, OutputStream outputStream, AdaptiveWriteTuner tuner) {
+        mDeviceAddress = deviceAddress;
+        mOutputStream = outputStream;
+        mTuner = tuner;
+        mChunk = new byte[tuner.getMaxChunkSize()];
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "RfcommWriter-" + deviceAddress);
+        mThread.start();
+    }
+
+    public String getDeviceAddress() {
+        return mDeviceAddress;
+    }
+
+    public AdaptiveWriteTuner getTuner() {
+        return mTuner;
+    }
+
+    /**
+     * Sets a callback that sees every chunk right after it is written. It runs
+     * on the writer thread and must not block.
+     */
+    public synchronized void setChunkObserver(ChunkObserver chunkObserver) {
+        mChunkObserver = chunkObserver;
+    }
+
+    public WriteHandle write(byte[] data, Callback callback) {
+        return write(data, 0, callback);
+    }
+
+    /**
+     * Queues data to be written. If it is not completely written
+     * {@code timeout} milliseconds from now the write fails with
+     * InterruptedIOException; zero means no deadline. The callback, which may
+     * be null, is invoked on the writer thread or on the thread that cancels or
+     * expires the write.
+     */
+    public WriteHandle write(byte[] data, long timeout, Callback callback) {
+        WriteHandle handle = new WriteHandle(data, timeout > 0 ?
+                System.nanoTime() + timeout * 1000000 : 0, callback);
+        synchronized (this) {
+            if (!mClosed) {
+                mTuner.onWriteQueued(data.length);
+                mRequests.addLast(handle);
+                mPendingBytes += data.length;
+                notifyAll();
+                return handle;
+            }
+        }
+        handle.fail(new IOException("Writer for " + mDeviceAddress + " is closed"));
+
+        return handle;
+    }
+
+    /**
+     * Returns how long the write call in progress has been blocked, in
+     * nanoseconds, or zero if the writer is not inside a write call.
+     */
+    public long getBlockedNanos() {
+        long writeStartNanos = mWriteStartNanos;
+        if (writeStartNanos == 0) {
+            return 0;
+        }
+
+        return System.nanoTime() - writeStartNanos;
+    }
+
+    /**
+     * Fails writes whose deadline has passed. Returns true if one of them had
+     * already started: its remaining bytes still go out, so the link should be
+     * closed. Safe to call while the writer thread is blocked.
+     */
+    public boolean expireOverdueWrites() {
+        List<WriteHandle> expired = new ArrayList<WriteHandle>();
+        boolean startedWriteExpired = false;
+        synchronized (this) {
+            long now = System.nanoTime();
+            removeOverdue(now, expired);
+            WriteHandle head = mRequests.peekFirst();
+            if (head != null && head.mOffset > 0 && head.isOverdue(now)) {
+                expired.add(head);
+                startedWriteExpired = true;
+            }
+            for (WriteHandle handle : mInFlight) {
+                if (handle.isOverdue(now)) {
+                    expired.add(handle);
+                    startedWriteExpired = true;
+                }
+            }
+        }
+        for (WriteHandle handle : expired) {
+            handle.fail(new InterruptedIOException("Write deadline exceeded"));
+        }
+
+        return startedWriteExpired;
+    }
+
+    /**
+     * Stops the writer. Queued writes that were not written yet fail.
+     */
+    public void close() {
+        List<WriteHandle> failed;
+        synchronized (this) {
+            mClosed = true;
+            failed = new ArrayList<WriteHandle>(mRequests);
+            mRequests.clear();
+            mPendingBytes = 0;
+            notifyAll();
+        }
+        fail(failed, new IOException("Writer for " + mDeviceAddress + " closed"));
+    }
+
+    private void removeOverdue(long now, List<WriteHandle> expired) {
+        Iterator<WriteHandle> iterator = mRequests.iterator();
+        while (iterator.hasNext()) {
+            WriteHandle handle = iterator.next();
+            if (handle.mDeadlineNanos != 0 && handle.mOffset == 0 && now - handle.mDeadlineNanos > 0) {
+                iterator.remove();
+                mPendingBytes -= handle.mData.length;
+                expired.add(handle);
+            }
+        }
+    }
+
+    private void writeLoop() {
+        List<WriteHandle> completed = new ArrayList<WriteHandle>();
+        List<WriteHandle> expired = new ArrayList<WriteHandle>();
+        try {
+            while (true) {
+                for (WriteHandle handle : expired) {
+                    handle.fail(new InterruptedIOException("Write deadline exceeded"));
+                }
+                expired.clear();
+
+                byte[] chunk;
+                int offset;
+                int length;
+                ChunkObserver chunkObserver;
+                synchronized (this) {
+                    while (mRequests.isEmpty() && !mClosed) {
+                        wait();
+                    }
+                    if (mClosed) {
+                        return;
+                    }
+
+                    // Give small writes a chance to coalesce into a fuller chunk
+                    int chunkSize = mTuner.getChunkSize();
+                    long deadline = System.nanoTime() + mTuner.getCoalesceDelayNanos();
+                    long remaining;
+                    while (mPendingBytes < chunkSize && !mClosed
+                            && (remaining = deadline - System.nanoTime()) > 0) {
+                        wait(remaining / 1000000, (int) (remaining % 1000000));
+                    }
+                    if (mClosed) {
+                        return;
+                    }
+                    removeOverdue(System.nanoTime(), expired);
+                    if (mRequests.isEmpty()) {
+                        continue;
+                    }
+
+                    WriteHandle head = mRequests.peekFirst();
+                    if (head.remaining() >= chunkSize) {
+                        // Large write, send a slice of it without copying
+                        chunk = head.mData;
+                        offset = head.mOffset;
+                        length = chunkSize;
+                        head.mOffset += chunkSize;
+                        if (head.remaining() == 0) {
+                            mInFlight.add(mRequests.pollFirst());
+                        }
+                    }
+                    else {
+                        chunk = mChunk;
+                        offset = 0;
+                        length = 0;
+                        while (length < chunkSize && !mRequests.isEmpty()) {
+                            WriteHandle handle = mRequests.peekFirst();
+                            int count = Math.min(chunkSize - length, handle.remaining());
+                            System.arraycopy(handle.mData, handle.mOffset, mChunk, length, count);
+                            handle.mOffset += count;
+                            length += count;
+                            if (handle.remaining() == 0) {
+                                mInFlight.add(mRequests.pollFirst());
+                            }
+                        }
+                    }
+                    mPendingBytes -= length;
+                    chunkObserver = mChunkObserver;
+                }
+
+                long startNanos = System.nanoTime();
+                mWriteStartNanos = startNanos;
+                try {
+                    mOutputStream.write(chunk, offset, length);
+                }
+                finally {
+                    mWriteStartNanos = 0;
+                }
+                mTuner.onChunkWritten(length, System.nanoTime() - startNanos);
+                if (chunkObserver != null) {
+                    chunkObserver.onChunkWritten(mDeviceAddress, chunk, offset, length);
+                }
+
+                synchronized (this) {
+                    completed.addAll(mInFlight);
+                    mInFlight.clear();
+                }
+                for (WriteHandle handle : completed) {
+                    handle.finish();
+                }
+                completed.clear();
+            }
+        }
+        catch (IOException e) {
+            List<WriteHandle> failed;
+            synchronized (this) {
+                mClosed = true;
+                failed = new ArrayList<WriteHandle>(mInFlight);
+                failed.addAll(mRequests);
+                mInFlight.clear();
+                mRequests.clear();
+                mPendingBytes = 0;
+            }
+            fail(failed, e);
+        }
+        catch (InterruptedException e) {
+            close();
+        }
+    }
+
+    private static void fail(List<WriteHandle> handles, IOException e) {
+        for (WriteHandle handle : handles) {
+            handle.fail(e);
+        }
+    }
+
+    /**
+     * A queued write. It can be cancelled until its first byte is written.
+     */
+    public class WriteHandle {
+        private final byte[] mData;
+        private final long mDeadlineNanos;
+        private final Callback mCallback;
+        // Guarded by the enclosing writer
+        private int mOffset;
+        private boolean mDone;
+
+        private WriteHandle(byte[] data, long deadlineNanos, Callback callback) {
+            mData = data;
+            mDeadlineNanos = deadlineNanos;
+            mCallback = callback;
+        }
+
+        /**
+         * Removes the write from the queue and fails it. Returns false if the
+         * write already started or finished, in which case it runs to the end.
+         */
+        public boolean cancel() {
+            synchronized (RfcommWriter.this) {
+                if (mOffset > 0 || !mRequests.remove(this)) {
+                    return false;
+                }
+                mPendingBytes -= mData.length;
+            }
+            fail(new InterruptedIOException("Write cancelled"));
+
+            return true;
+        }
+
+        public boolean isDone() {
+            synchronized (RfcommWriter.this) {
+                return mDone;
+            }
+        }
+
+        private int remaining() {
+            return mData.length - mOffset;
+        }
+
+        // Called with the enclosing writer locked
+        private boolean isOverdue(long now) {
+            return mDeadlineNanos != 0 && !mDone && now - mDeadlineNanos > 0;
+        }
+
+        private void finish() {
+            if (markDone() && mCallback != null) {
+                mCallback.onWriteFinished();
+            }
+        }
+
+        private void fail(IOException e) {
+            if (markDone() && mCallback != null) {
+                mCallback.onWriteError(e);
+            }
+        }
+
+        private boolean markDone() {
+            synchronized (RfcommWriter.this) {
+                if (mDone) {
+                    return false;
+                }
+                mDone = true;
+
+                return true;
+            }
+        }
+    }
+
+    public interface Callback {
+        public void onWriteFinished();
+        public void onWriteError(IOException e);
+    }
+
+    public interface ChunkObserver {
+        public void onChunkWritten(String deviceAddress, byte[] data, int offset, int length);
+    }
+}
@@ -0,0 +1,224 @@
+package org.palmalabs.android.bluetooth.soak;
+
+import org.palmalabs.android.bluetooth.BluetoothTrafficReplayer;
+import org.palmalabs.android.bluetooth.Flow;
+import org.palmalabs.android.bluetooth.RfcommInboundPublisher;
+import org.palmalabs.android.bluetooth.RfcommLinkManager;
+import org.palmalabs.android.bluetooth.RfcommWriter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory stand-in for RFCOMM sockets, used to replay captures through the
+ * library without a device. Each device in the capture gets a link attached to
+ * a {@link RfcommLinkManager}: outbound records are queued with
+ * {@link RfcommLinkManager#write}, so they go through RfcommWriter and its
+ * tuner, and inbound records are fed to the link's input stream, where its
+ * RfcommInboundPublisher reads them for a subscriber that drains them.
+ */
+public class FakeRfcommTransport implements BluetoothTrafficReplayer.Target {
+    private static final int PIPE_SIZE = 64 * 1024;
+
+    private final RfcommLinkManager mLinkManager;
+    private final Map<String, Link> mLinks = new HashMap<String, Link>();
+
+    public FakeRfcommTransport(RfcommLinkManager linkManager) {
+        mLinkManager = linkManager;
+    }
+
+    @Override
+    public void onOutbound(String deviceAddress, byte[] data) throws IOException {
+        final Link link = getLink(deviceAddress);
+        synchronized (link) {
+            link.mPendingWrites++;
+        }
+        RfcommWriter.WriteHandle handle = mLinkManager.write(deviceAddress, data, 0,
+                new RfcommWriter.Callback() {
+            @Override
+            public void onWriteFinished() {
+                link.onWriteDone(false);
+            }
+
+            @Override
+            public void onWriteError(IOException e) {
+                link.onWriteDone(true);
+            }
+        });
+        if (handle == null) {
+            link.onWriteDone(true);
+            throw new IOException("Link to " + deviceAddress + " is closed");
+        }
+    }
+
+    @Override
+    public void onInbound(String deviceAddress, byte[] data) throws IOException {
+        Link link = getLink(deviceAddress);
+        synchronized (link) {
+            link.mBytesFed += data.length;
+        }
+        // Blocks only while the publisher's reader catches up
+        link.mInbound.getOutputStream().write(data);
+    }
+
+    public synchronized List<String> getDeviceAddresses() {
+        return new ArrayList<String>(mLinks.keySet());
+    }
+
+    /**
+     * Returns how many outbound bytes the writer handed to the fake socket.
+     */
+    public long getBytesWritten(String deviceAddress) {
+        return getExistingLink(deviceAddress).mOutputStream.mCount;
+    }
+
+    public long getWritesFailed(String deviceAddress) {
+        Link link = getExistingLink(deviceAddress);
+        synchronized (link) {
+            return link.mWritesFailed;
+        }
+    }
+
+    public long getFramesReceived(String deviceAddress) {
+        Link link = getExistingLink(deviceAddress);
+        synchronized (link) {
+            return link.mFramesReceived;
+        }
+    }
+
+    public long getBytesReceived(String deviceAddress) {
+        Link link = getExistingLink(deviceAddress);
+        synchronized (link) {
+            return link.mBytesReceived;
+        }
+    }
+
+    /**
+     * Waits until every queued write completed and every inbound byte reached
+     * the subscriber. Returns false on timeout, in milliseconds.
+     */
+    public boolean awaitDrained(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        List<Link> links;
+        synchronized (this) {
+            links = new ArrayList<Link>(mLinks.values());
+        }
+        for (Link link : links) {
+            synchronized (link) {
+                long remaining;
+                while ((link.mPendingWrites > 0 || link.mBytesReceived < link.mBytesFed)
+                        && !link.mEnded && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                    link.wait(remaining);
+                }
+                if (link.mPendingWrites > 0 || link.mBytesReceived < link.mBytesFed) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Closes every link this transport attached.
+     */
+    public synchronized void close() {
+        for (String deviceAddress : mLinks.keySet()) {
+            mLinkManager.close(deviceAddress);
+        }
+    }
+
+    private synchronized Link getExistingLink(String deviceAddress) {
+        Link link = mLinks.get(deviceAddress);
+        if (link == null) {
+            throw new IllegalArgumentException("No link to " + deviceAddress);
+        }
+
+        return link;
+    }
+
+    private synchronized Link getLink(String deviceAddress) {
+        Link link = mLinks.get(deviceAddress);
+        if (link == null) {
+            link = new Link();
+            mLinks.put(deviceAddress, link);
+            mLinkManager.attach(deviceAddress, link, link.mInbound.getInputStream(),
+                    link.mOutputStream);
+            RfcommInboundPublisher inboundPublisher = mLinkManager.getInboundPublisher(deviceAddress);
+            if (inboundPublisher != null) {
+                inboundPublisher.subscribe(link);
+            }
+        }
+
+        return link;
+    }
+
+    // The fake socket of one device, and the subscriber draining its inbound data
+    private static class Link implements Closeable, Flow.Subscriber<byte[]> {
+        final SimulatedPipe mInbound = new SimulatedPipe(PIPE_SIZE, 0);
+        final CountingOutputStream mOutputStream = new CountingOutputStream();
+        // Guarded by this
+        long mPendingWrites;
+        long mWritesFailed;
+        long mBytesFed;
+        long mFramesReceived;
+        long mBytesReceived;
+        boolean mEnded;
+
+        synchronized void onWriteDone(boolean failed) {
+            mPendingWrites--;
+            if (failed) {
+                mWritesFailed++;
+            }
+            notifyAll();
+        }
+
+        @Override
+        public void close() {
+            mInbound.close();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public synchronized void onNext(byte[] frame) {
+            mFramesReceived++;
+            mBytesReceived += frame.length;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onError(Throwable throwable) {
+            mEnded = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onComplete() {
+            mEnded = true;
+            notifyAll();
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        volatile long mCount;
+
+        @Override
+        public void write(int b) {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.palmalabs.android.bluetooth.soak;
+
+/**
+ * Log-linear histogram of latencies in microseconds, with eight buckets per
+ * power of two, so percentiles are within 12.5% of the real value whatever
+ * the range.
+ */
+public class LatencyHistogram {
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = LINEAR_BUCKETS + (64 - 4) * SUB_BUCKETS;
+
+    private long[] mCounts = new long[BUCKETS];
+    private long mCount;
+    private long mMax;
+
+    public synchronized void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        mCounts[bucketOf(micros)]++;
+        mCount++;
+        if (micros > mMax) {
+            mMax = micros;
+        }
+    }
+
+    public synchronized void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        mCount += other.mCount;
+        mMax = Math.max(mMax, other.mMax);
+    }
+
+    /**
+     * Returns what was recorded so far and starts over empty.
+     */
+    public synchronized LatencyHistogram reset() {
+        LatencyHistogram snapshot = new LatencyHistogram();
+        snapshot.mCounts = mCounts;
+        snapshot.mCount = mCount;
+        snapshot.mMax = mMax;
+        mCounts = new long[BUCKETS];
+        mCount = 0;
+        mMax = 0;
+
+        return snapshot;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile, or
+     * zero if nothing was recorded.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(mCount * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(upperBoundOf(i), mMax);
+            }
+        }
+
+        return mMax;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("p50=%s p95=%s p99=%s max=%s (n=%d)",
+                format(getPercentile(50)), format(getPercentile(95)),
+                format(getPercentile(99)), format(mMax), mCount);
+    }
+
+    private static String format(long micros) {
+        if (micros < 1000) {
+            return micros + "us";
+        }
+        if (micros < 1000000) {
+            return String.format("%.1fms", micros / 1000.0);
+        }
+
+        return String.format("%.2fs", micros / 1000000.0);
+    }
+
+    private static int bucketOf(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+        return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        long lowerBound = (1L << exponent) + ((long) subBucket << (exponent - SUB_BUCKET_BITS));
+
+        return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
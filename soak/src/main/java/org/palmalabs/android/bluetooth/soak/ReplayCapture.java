@@ -0,0 +1,65 @@
+package org.palmalabs.android.bluetooth.soak;
+
+import org.palmalabs.android.bluetooth.BluetoothTrafficReplayer;
+import org.palmalabs.android.bluetooth.RfcommLinkManager;
+
+import java.io.File;
+
+/**
+ * Replays a traffic capture through {@link RfcommLinkManager} over a
+ * {@link FakeRfcommTransport} and reports, per device, what went through the
+ * writer and the inbound publisher and how the write tuner settled.
+ *
+ * Usage: ReplayCapture capture-file [speed], speed 0 meaning as fast as possible.
+ */
+public class ReplayCapture {
+    private static final long DRAIN_TIMEOUT = 30 * 1000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: ReplayCapture capture-file [speed]");
+            System.exit(2);
+            return;
+        }
+        BluetoothTrafficReplayer replayer = new BluetoothTrafficReplayer(new File(args[0]));
+        if (args.length > 1) {
+            replayer.setSpeed(Double.parseDouble(args[1]));
+        }
+
+        RfcommLinkManager linkManager = new RfcommLinkManager(new RfcommLinkManager.Listener() {
+            @Override
+            public void onLinkLost(String deviceAddress) {
+                System.out.println(deviceAddress + ": link lost");
+            }
+
+            @Override
+            public void onLinkStalled(String deviceAddress) {
+                System.out.println(deviceAddress + ": link stalled");
+            }
+
+            @Override
+            public void onLinkEvicted(String deviceAddress) {
+                System.out.println(deviceAddress + ": link evicted");
+            }
+        });
+        linkManager.start();
+        FakeRfcommTransport transport = new FakeRfcommTransport(linkManager);
+        long elapsedNanos = replayer.replay(transport);
+        boolean drained = transport.awaitDrained(DRAIN_TIMEOUT);
+
+        System.out.println(String.format("Replayed in %.3fs%s", elapsedNanos / 1e9,
+                drained ? "" : ", not drained after " + DRAIN_TIMEOUT / 1000 + "s"));
+        for (String deviceAddress : transport.getDeviceAddresses()) {
+            System.out.println(String.format("%s: out %dB written, %d writes failed; "
+                    + "in %d frames, %dB; tuner %s", deviceAddress,
+                    transport.getBytesWritten(deviceAddress),
+                    transport.getWritesFailed(deviceAddress),
+                    transport.getFramesReceived(deviceAddress),
+                    transport.getBytesReceived(deviceAddress),
+                    linkManager.getWriteTuner(deviceAddress)));
+        }
+        transport.close();
+        linkManager.stop();
+        System.exit(drained ? 0 : 1);
+    }
+}
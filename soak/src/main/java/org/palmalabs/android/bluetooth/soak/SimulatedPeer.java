@@ -0,0 +1,168 @@
+package org.palmalabs.android.bluetooth.soak;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * A device at the other end of one simulated connection. It streams frames at
+ * a fixed rate, each carrying a sequence number and its send time behind a
+ * marker and followed by a check word, so a reader can find frames again in a
+ * stream that lost bytes. It drops a share of them in transit, reads our
+ * writes no faster than its read rate and hangs up after a random,
+ * exponentially distributed connection lifetime.
+ */
+public class SimulatedPeer {
+    static final int FRAME_MAGIC = 0x534f414b;
+    // marker, sequence number, send time, sequence number ^ send time
+    static final int FRAME_HEADER_SIZE = 4 + 8 + 8 + 8;
+
+    private final String mDeviceAddress;
+    private final SoakStats mStats;
+    private final Random mRandom;
+    private final int mInboundRate;
+    private final int mFrameSize;
+    private final double mLoss;
+    private final int mPeerReadRate;
+    private final SimulatedPipe mInbound;
+    private final SimulatedPipe mOutbound;
+    private final boolean mHangsUp;
+    private final long mHangUpNanos;
+    private Thread mSender;
+    private Thread mReader;
+    private volatile boolean mHungUp;
+
+    public SimulatedPeer(String deviceAddress, SoakConfig config, SoakStats stats, Random random) {
+        mDeviceAddress = deviceAddress;
+        mStats = stats;
+        mRandom = random;
+        mInboundRate = config.getInt("inboundRate");
+        mFrameSize = Math.max(config.getInt("frameSize"), FRAME_HEADER_SIZE);
+        mLoss = config.getDouble("loss");
+        mPeerReadRate = config.getInt("peerReadRate");
+        mInbound = new SimulatedPipe(config.getInt("pipeCapacity"), config.getLong("latency"));
+        mOutbound = new SimulatedPipe(config.getInt("pipeCapacity"), config.getLong("latency"));
+
+        long disconnectInterval = config.getLong("disconnectIntervalSeconds") * 1000000000L;
+        mHangsUp = disconnectInterval > 0;
+        long lifetime = (long) (-Math.log(1 - random.nextDouble()) * disconnectInterval);
+        mHangUpNanos = System.nanoTime() + lifetime;
+    }
+
+    /**
+     * Starts the peer and returns our end of the connection.
+     */
+    public SimulatedSocket connect() {
+        SimulatedSocket socket = new SimulatedSocket(mInbound, mOutbound, mStats);
+        mSender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                send(mInbound.getOutputStream());
+            }
+        }, "SimulatedPeer-send-" + mDeviceAddress);
+        mReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read(mOutbound.getInputStream());
+            }
+        }, "SimulatedPeer-read-" + mDeviceAddress);
+        mSender.start();
+        mReader.start();
+
+        return socket;
+    }
+
+    /**
+     * Hangs up if still connected and waits for the peer threads to finish.
+     */
+    public void stop() throws InterruptedException {
+        hangUp();
+        if (mSender != null) {
+            mSender.join();
+            mReader.join();
+        }
+    }
+
+    private void hangUp() {
+        mHungUp = true;
+        mInbound.close();
+        mOutbound.close();
+    }
+
+    private void send(OutputStream outputStream) {
+        long intervalNanos = mInboundRate > 0 ? mFrameSize * 1000000000L / mInboundRate : 0;
+        long nextNanos = System.nanoTime();
+        long sequence = 0;
+        ByteBuffer frame = ByteBuffer.allocate(mFrameSize);
+        try {
+            while (!mHungUp) {
+                long now = System.nanoTime();
+                long untilHangUp = mHangsUp ? mHangUpNanos - now : Long.MAX_VALUE;
+                if (untilHangUp <= 0) {
+                    mStats.mPeerDisconnects.incrementAndGet();
+                    hangUp();
+                    return;
+                }
+                long sleepNanos = Math.min(intervalNanos > 0 ? nextNanos - now : Long.MAX_VALUE,
+                        untilHangUp);
+                if (sleepNanos > 0) {
+                    Thread.sleep(Math.min(sleepNanos / 1000000, 100), (int) (sleepNanos % 1000000));
+                    continue;
+                }
+
+                // A peer held back by backpressure does not burst to catch up
+                nextNanos = Math.max(nextNanos + intervalNanos, now - 1000000000L);
+                sequence++;
+                if (mRandom.nextDouble() < mLoss) {
+                    mStats.mFramesLostInTransit.incrementAndGet();
+                    continue;
+                }
+                long sentNanos = System.nanoTime();
+                frame.clear();
+                frame.putInt(FRAME_MAGIC);
+                frame.putLong(sequence);
+                frame.putLong(sentNanos);
+                frame.putLong(sequence ^ sentNanos);
+                outputStream.write(frame.array());
+                mStats.mFramesSent.incrementAndGet();
+            }
+        }
+        catch (IOException e) {
+            // Our side closed the connection
+        }
+        catch (InterruptedException e) {
+            hangUp();
+        }
+    }
+
+    private void read(InputStream inputStream) {
+        byte[] buffer = new byte[1024];
+        long budgetNanos = System.nanoTime();
+        try {
+            while (true) {
+                int length = inputStream.read(buffer);
+                if (length < 0) {
+                    return;
+                }
+                mStats.mPeerBytesRead.addAndGet(length);
+                if (mPeerReadRate > 0) {
+                    // Pace reads so a slow peer fills the pipe and backs up our writer
+                    budgetNanos = Math.max(budgetNanos, System.nanoTime() - 1000000000L)
+                            + length * 1000000000L / mPeerReadRate;
+                    long sleepNanos = budgetNanos - System.nanoTime();
+                    if (sleepNanos > 0) {
+                        Thread.sleep(sleepNanos / 1000000, (int) (sleepNanos % 1000000));
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            // Connection closed by either side
+        }
+        catch (InterruptedException e) {
+            hangUp();
+        }
+    }
+}
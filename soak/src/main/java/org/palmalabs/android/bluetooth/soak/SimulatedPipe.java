@@ -0,0 +1,162 @@
+package org.palmalabs.android.bluetooth.soak;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * One direction of a simulated RFCOMM channel. Bytes become readable a fixed
+ * latency after they are written, and writers block while the pipe holds
+ * {@code capacity} bytes, like a socket whose peer stopped reading.
+ *
+ * Like a stream socket, the pipe keeps no write boundaries: a read returns
+ * whatever has arrived, up to the requested length, across any number of
+ * writes. Once closed, both ends throw IOException.
+ */
+public class SimulatedPipe {
+    private final ArrayDeque<Segment> mSegments = new ArrayDeque<Segment>();
+    private final int mCapacity;
+    private final long mLatencyNanos;
+    private int mSize;
+    private boolean mClosed;
+
+    private final InputStream mInputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return SimulatedPipe.this.read(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            SimulatedPipe.this.close();
+        }
+    };
+
+    private final OutputStream mOutputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            SimulatedPipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            SimulatedPipe.this.close();
+        }
+    };
+
+    /**
+     * @param capacity bytes the pipe holds before writers block
+     * @param latency delay before written bytes can be read, in milliseconds
+     */
+    public SimulatedPipe(int capacity, long latency) {
+        mCapacity = capacity;
+        mLatencyNanos = latency * 1000000;
+    }
+
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    public synchronized void close() {
+        mClosed = true;
+        mSegments.clear();
+        mSize = 0;
+        notifyAll();
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        try {
+            while (len > 0) {
+                int count = Math.min(len, mCapacity);
+                while (mSize + count > mCapacity && !mClosed) {
+                    wait();
+                }
+                if (mClosed) {
+                    throw new IOException("Pipe closed");
+                }
+                mSegments.addLast(new Segment(Arrays.copyOfRange(b, off, off + count),
+                        System.nanoTime() + mLatencyNanos));
+                mSize += count;
+                off += count;
+                len -= count;
+                notifyAll();
+            }
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException("Write interrupted");
+        }
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        try {
+            while (true) {
+                if (mClosed) {
+                    throw new IOException("Pipe closed");
+                }
+                Segment segment = mSegments.peekFirst();
+                if (segment == null) {
+                    wait();
+                    continue;
+                }
+                long remaining = segment.mAvailableNanos - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                wait(remaining / 1000000, (int) (remaining % 1000000));
+            }
+
+            int count = 0;
+            long now = System.nanoTime();
+            Segment segment = mSegments.peekFirst();
+            while (count < len && segment != null && segment.mAvailableNanos <= now) {
+                int length = Math.min(len - count, segment.mData.length - segment.mOffset);
+                System.arraycopy(segment.mData, segment.mOffset, b, off + count, length);
+                segment.mOffset += length;
+                count += length;
+                if (segment.mOffset == segment.mData.length) {
+                    mSegments.pollFirst();
+                    segment = mSegments.peekFirst();
+                }
+            }
+            mSize -= count;
+            notifyAll();
+
+            return count;
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException("Read interrupted");
+        }
+    }
+
+    private static class Segment {
+        final byte[] mData;
+        final long mAvailableNanos;
+        int mOffset;
+
+        Segment(byte[] data, long availableNanos) {
+            mData = data;
+            mAvailableNanos = availableNanos;
+        }
+    }
+}
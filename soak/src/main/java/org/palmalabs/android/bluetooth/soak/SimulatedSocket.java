@@ -0,0 +1,46 @@
+package org.palmalabs.android.bluetooth.soak;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Our end of a simulated RFCOMM connection. Closing it tears down both
+ * directions and is counted once, so sockets the library never closes show up
+ * as leaks.
+ */
+public class SimulatedSocket implements Closeable {
+    private final SimulatedPipe mInbound;
+    private final SimulatedPipe mOutbound;
+    private final SoakStats mStats;
+    private final AtomicBoolean mClosed = new AtomicBoolean();
+
+    SimulatedSocket(SimulatedPipe inbound, SimulatedPipe outbound, SoakStats stats) {
+        mInbound = inbound;
+        mOutbound = outbound;
+        mStats = stats;
+        mStats.mSocketsOpened.incrementAndGet();
+    }
+
+    public InputStream getInputStream() {
+        return mInbound.getInputStream();
+    }
+
+    public OutputStream getOutputStream() {
+        return mOutbound.getOutputStream();
+    }
+
+    public boolean isClosed() {
+        return mClosed.get();
+    }
+
+    @Override
+    public void close() {
+        if (mClosed.compareAndSet(false, true)) {
+            mStats.mSocketsClosed.incrementAndGet();
+            mInbound.close();
+            mOutbound.close();
+        }
+    }
+}
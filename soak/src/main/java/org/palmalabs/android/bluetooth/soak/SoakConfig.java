@@ -0,0 +1,80 @@
+package org.palmalabs.android.bluetooth.soak;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Soak run parameters, given on the command line as {@code key=value} pairs.
+ * Times are in milliseconds unless the key says otherwise, rates in bytes per
+ * second per device. A rate or interval of zero disables the feature.
+ */
+public class SoakConfig {
+    private final Map<String, String> mValues = new LinkedHashMap<String, String>();
+
+    public SoakConfig() {
+        mValues.put("devices", "50");
+        mValues.put("durationSeconds", "3600");
+        mValues.put("reportSeconds", "10");
+        // Simulated peers
+        mValues.put("inboundRate", "4096");
+        mValues.put("frameSize", "128");
+        mValues.put("latency", "20");
+        mValues.put("loss", "0.001");
+        mValues.put("disconnectIntervalSeconds", "300");
+        mValues.put("peerReadRate", "8192");
+        mValues.put("pipeCapacity", "16384");
+        // Driver side
+        mValues.put("commandInterval", "100");
+        mValues.put("commandSize", "64");
+        mValues.put("writeTimeout", "5000");
+        mValues.put("heartbeat", "1000");
+        mValues.put("reconnectDelay", "500");
+        mValues.put("idleTimeout", "0");
+        mValues.put("writeStallTimeout", "15000");
+        mValues.put("overflow", "BUFFER");
+        mValues.put("inboundBuffer", "64");
+        mValues.put("capture", "");
+    }
+
+    public static SoakConfig parse(String[] args) {
+        SoakConfig config = new SoakConfig();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0 || !config.mValues.containsKey(arg.substring(0, separator))) {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+            config.mValues.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+
+        return config;
+    }
+
+    public String getString(String key) {
+        return mValues.get(key);
+    }
+
+    public int getInt(String key) {
+        return Integer.parseInt(mValues.get(key));
+    }
+
+    public long getLong(String key) {
+        return Long.parseLong(mValues.get(key));
+    }
+
+    public double getDouble(String key) {
+        return Double.parseDouble(mValues.get(key));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, String> entry : mValues.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            builder.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+
+        return builder.toString();
+    }
+}
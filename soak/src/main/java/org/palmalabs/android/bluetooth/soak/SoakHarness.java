@@ -0,0 +1,413 @@
+package org.palmalabs.android.bluetooth.soak;
+
+import org.palmalabs.android.bluetooth.BluetoothTrafficCapture;
+import org.palmalabs.android.bluetooth.Flow;
+import org.palmalabs.android.bluetooth.RfcommInboundPublisher;
+import org.palmalabs.android.bluetooth.RfcommLinkManager;
+import org.palmalabs.android.bluetooth.RfcommWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Drives {@link RfcommLinkManager}, the connection, write and monitor logic
+ * behind BluetoothService, against simulated peers on a plain JVM.
+ *
+ * Each device gets a driver thread that connects, subscribes to inbound data,
+ * sends commands, keeps asking for the link to be monitored the way repeated
+ * monitor intents reach the service, and reconnects whenever the peer hangs
+ * up. The harness periodically reports throughput, latency percentiles, thread
+ * count, heap and socket leaks, and exits with status 1 if sockets or threads
+ * outlive the run.
+ *
+ * Usage: SoakHarness [key=value ...], see {@link SoakConfig} for the keys.
+ */
+public class SoakHarness {
+    private static final int REQUEST_BATCH = 32;
+    private static final long SHUTDOWN_GRACE = 5000;
+
+    private final SoakConfig mConfig;
+    private final SoakStats mStats = new SoakStats();
+    private final RfcommLinkManager mLinkManager;
+    private final List<Thread> mDrivers = new ArrayList<Thread>();
+    private final MemoryMXBean mMemory = ManagementFactory.getMemoryMXBean();
+    private final ThreadMXBean mThreads = ManagementFactory.getThreadMXBean();
+    private final LatencyHistogram mInboundLatencyTotal = new LatencyHistogram();
+    private final LatencyHistogram mWriteLatencyTotal = new LatencyHistogram();
+    private BluetoothTrafficCapture mTrafficCapture;
+    private volatile boolean mRunning;
+
+    public SoakHarness(SoakConfig config) {
+        mConfig = config;
+        mLinkManager = new RfcommLinkManager(new RfcommLinkManager.Listener() {
+            @Override
+            public void onLinkLost(String deviceAddress) {
+                mStats.mLinksLost.incrementAndGet();
+            }
+
+            @Override
+            public void onLinkStalled(String deviceAddress) {
+                mStats.mLinksStalled.incrementAndGet();
+            }
+
+            @Override
+            public void onLinkEvicted(String deviceAddress) {
+                mStats.mLinksEvicted.incrementAndGet();
+            }
+        });
+        mLinkManager.setInboundOverflowStrategy(RfcommInboundPublisher.OverflowStrategy
+                .valueOf(config.getString("overflow")), config.getInt("inboundBuffer"));
+        mLinkManager.setWriteStallTimeout(config.getLong("writeStallTimeout"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        SoakConfig config;
+        try {
+            config = SoakConfig.parse(args);
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Defaults: " + new SoakConfig());
+            System.exit(2);
+            return;
+        }
+
+        System.exit(new SoakHarness(config).run() ? 0 : 1);
+    }
+
+    /**
+     * Runs the soak for the configured duration. Returns false if sockets or
+     * threads leaked.
+     */
+    public boolean run() throws InterruptedException, IOException {
+        System.out.println("Soak: " + mConfig);
+        Set<Long> baselineThreads = liveThreadIds();
+
+        if (mConfig.getString("capture").length() > 0) {
+            mTrafficCapture = new BluetoothTrafficCapture(new File(mConfig.getString("capture")),
+                    64 * 1024 * 1024);
+            mLinkManager.setTrafficCapture(mTrafficCapture);
+        }
+        mLinkManager.start();
+        mRunning = true;
+        int devices = mConfig.getInt("devices");
+        for (int i = 0; i < devices; i++) {
+            final String deviceAddress = String.format("00:50:0A:4B:%02X:%02X", i >> 8, i & 0xff);
+            // Spread the seeds, nearby seeds start java.util.Random off almost identically
+            final Random random = new Random(i * 0x9E3779B97F4A7C15L);
+            Thread driver = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drive(deviceAddress, random);
+                }
+            }, "SoakDriver-" + deviceAddress);
+            mDrivers.add(driver);
+            driver.start();
+        }
+
+        long startNanos = System.nanoTime();
+        long endNanos = startNanos + mConfig.getLong("durationSeconds") * 1000000000L;
+        long reportInterval = mConfig.getLong("reportSeconds") * 1000;
+        long idleTimeout = mConfig.getLong("idleTimeout");
+        Report previous = new Report(startNanos, 0, 0, heapUsed());
+        long baselineHeap = -1;
+        while (System.nanoTime() - endNanos < 0) {
+            long sleep = Math.min(reportInterval, (endNanos - System.nanoTime()) / 1000000);
+            if (sleep > 0) {
+                Thread.sleep(sleep);
+            }
+            if (idleTimeout > 0) {
+                mLinkManager.evictIdleLinks(idleTimeout);
+            }
+            Report report = new Report(System.nanoTime(), mStats.mBytesReceived.get(),
+                    mStats.mPeerBytesRead.get(), heapUsed());
+            // The first interval is warm-up; heap growth is measured from its end
+            if (baselineHeap < 0) {
+                baselineHeap = report.mHeapUsed;
+            }
+            printReport(startNanos, previous, report, baselineHeap);
+            previous = report;
+        }
+
+        return shutDown(startNanos, baselineThreads);
+    }
+
+    private void drive(String deviceAddress, Random random) {
+        long commandInterval = mConfig.getLong("commandInterval");
+        long heartbeatInterval = mConfig.getLong("heartbeat");
+        long writeTimeout = mConfig.getLong("writeTimeout");
+        byte[] command = new byte[Math.max(mConfig.getInt("commandSize"), 8)];
+        int frameSize = Math.max(mConfig.getInt("frameSize"), SimulatedPeer.FRAME_HEADER_SIZE);
+
+        try {
+            while (mRunning) {
+                SimulatedPeer peer = new SimulatedPeer(deviceAddress, mConfig, mStats, random);
+                SimulatedSocket socket = peer.connect();
+                mLinkManager.attach(deviceAddress, socket, socket.getInputStream(),
+                        socket.getOutputStream());
+                mStats.mConnects.incrementAndGet();
+                RfcommInboundPublisher inboundPublisher =
+                        mLinkManager.getInboundPublisher(deviceAddress);
+                if (inboundPublisher != null) {
+                    inboundPublisher.subscribe(new FrameSubscriber(frameSize));
+                }
+
+                long nextCommand = System.currentTimeMillis();
+                long nextHeartbeat = nextCommand;
+                while (mRunning && mLinkManager.getSocket(deviceAddress) == socket) {
+                    long now = System.currentTimeMillis();
+                    if (commandInterval > 0 && now >= nextCommand) {
+                        nextCommand += commandInterval;
+                        sendCommand(deviceAddress, command, writeTimeout);
+                    }
+                    if (now >= nextHeartbeat) {
+                        // Only the first request starts a monitor, the rest must not leak threads
+                        nextHeartbeat += heartbeatInterval;
+                        mLinkManager.monitor(deviceAddress, heartbeatInterval);
+                    }
+                    long wakeUp = Math.min(commandInterval > 0 ? nextCommand : Long.MAX_VALUE,
+                            nextHeartbeat);
+                    Thread.sleep(Math.max(1, Math.min(wakeUp - now, 100)));
+                }
+
+                mLinkManager.close(deviceAddress);
+                peer.stop();
+                if (mRunning) {
+                    Thread.sleep(mConfig.getLong("reconnectDelay"));
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            mLinkManager.close(deviceAddress);
+        }
+    }
+
+    private void sendCommand(String deviceAddress, byte[] command, long writeTimeout) {
+        final long startNanos = System.nanoTime();
+        RfcommWriter.WriteHandle handle = mLinkManager.write(deviceAddress, command,
+                writeTimeout, new RfcommWriter.Callback() {
+            @Override
+            public void onWriteFinished() {
+                mStats.mWritesFinished.incrementAndGet();
+                mStats.mWriteLatency.record((System.nanoTime() - startNanos) / 1000);
+            }
+
+            @Override
+            public void onWriteError(IOException e) {
+                mStats.mWritesFailed.incrementAndGet();
+            }
+        });
+        if (handle == null) {
+            mStats.mWritesFailed.incrementAndGet();
+        }
+    }
+
+    private boolean shutDown(long startNanos, Set<Long> baselineThreads)
+            throws InterruptedException, IOException {
+        mRunning = false;
+        for (Thread driver : mDrivers) {
+            driver.join();
+        }
+        mLinkManager.stop();
+        if (mTrafficCapture != null) {
+            mLinkManager.setTrafficCapture(null);
+            mTrafficCapture.close();
+        }
+
+        // Writer, reader and watchdog threads wind down asynchronously after close
+        List<String> leftoverThreads = leftoverThreads(baselineThreads);
+        long deadline = System.currentTimeMillis() + SHUTDOWN_GRACE;
+        while (!leftoverThreads.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            leftoverThreads = leftoverThreads(baselineThreads);
+        }
+        mInboundLatencyTotal.add(mStats.mInboundLatency.reset());
+        mWriteLatencyTotal.add(mStats.mWriteLatency.reset());
+        long leakedSockets = mStats.mSocketsOpened.get() - mStats.mSocketsClosed.get();
+        long elapsedSeconds = Math.max(1, (System.nanoTime() - startNanos) / 1000000000L);
+
+        System.out.println("Summary after " + elapsedSeconds + "s:");
+        System.out.println(String.format("  inbound:  %d frames, %s/s, missing %d, lost in transit %d",
+                mStats.mFramesReceived.get(), formatBytes(mStats.mBytesReceived.get() / elapsedSeconds),
+                mStats.mFramesMissing.get(), mStats.mFramesLostInTransit.get()));
+        System.out.println(String.format("  outbound: %d writes finished, %d failed, %s/s read by peers",
+                mStats.mWritesFinished.get(), mStats.mWritesFailed.get(),
+                formatBytes(mStats.mPeerBytesRead.get() / elapsedSeconds)));
+        System.out.println("  inbound latency: " + mInboundLatencyTotal);
+        System.out.println("  write latency:   " + mWriteLatencyTotal);
+        System.out.println(String.format("  links: %d connects, %d peer hang-ups, %d lost, %d stalled, "
+                + "%d evicted, %d inbound errors", mStats.mConnects.get(),
+                mStats.mPeerDisconnects.get(), mStats.mLinksLost.get(), mStats.mLinksStalled.get(),
+                mStats.mLinksEvicted.get(), mStats.mInboundErrors.get()));
+        System.out.println(String.format("  sockets: %d opened, %d closed, %d leaked",
+                mStats.mSocketsOpened.get(), mStats.mSocketsClosed.get(), leakedSockets));
+        System.out.println("  leftover threads: " + (leftoverThreads.isEmpty() ? "none" : leftoverThreads));
+
+        return leakedSockets == 0 && leftoverThreads.isEmpty();
+    }
+
+    private void printReport(long startNanos, Report previous, Report report, long baselineHeap) {
+        double seconds = (report.mNanos - previous.mNanos) / 1e9;
+        int links = mLinkManager.getConnectedDevices().size();
+        long openSockets = mStats.mSocketsOpened.get() - mStats.mSocketsClosed.get();
+        System.out.println(String.format("[%6ds] links=%d in=%s/s out=%s/s threads=%d heap=%s (%s) "
+                + "sockets=%d leaked=%d reconnects=%d writeFailures=%d missing=%d",
+                (report.mNanos - startNanos) / 1000000000L, links,
+                formatBytes((long) ((report.mBytesIn - previous.mBytesIn) / seconds)),
+                formatBytes((long) ((report.mBytesOut - previous.mBytesOut) / seconds)),
+                mThreads.getThreadCount(), formatBytes(report.mHeapUsed),
+                (report.mHeapUsed >= baselineHeap ? "+" : "-")
+                        + formatBytes(Math.abs(report.mHeapUsed - baselineHeap)),
+                openSockets, Math.max(0, openSockets - links),
+                mStats.mConnects.get() - mConfig.getInt("devices"), mStats.mWritesFailed.get(),
+                mStats.mFramesMissing.get()));
+        LatencyHistogram inboundLatency = mStats.mInboundLatency.reset();
+        LatencyHistogram writeLatency = mStats.mWriteLatency.reset();
+        mInboundLatencyTotal.add(inboundLatency);
+        mWriteLatencyTotal.add(writeLatency);
+        System.out.println("          inbound " + inboundLatency + "  write " + writeLatency);
+    }
+
+    private long heapUsed() {
+        // Collect first so growth reflects retained objects, not garbage
+        System.gc();
+        return mMemory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static Set<Long> liveThreadIds() {
+        Set<Long> ids = new HashSet<Long>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            ids.add(thread.getId());
+        }
+
+        return ids;
+    }
+
+    private static List<String> leftoverThreads(Set<Long> baselineThreads) {
+        List<String> names = new ArrayList<String>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (!baselineThreads.contains(thread.getId()) && thread != Thread.currentThread()) {
+                names.add(thread.getName());
+            }
+        }
+
+        return names;
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + "B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format("%.1fKB", bytes / 1024.0);
+        }
+
+        return String.format("%.1fMB", bytes / (1024.0 * 1024));
+    }
+
+    private static class Report {
+        final long mNanos;
+        final long mBytesIn;
+        final long mBytesOut;
+        final long mHeapUsed;
+
+        Report(long nanos, long bytesIn, long bytesOut, long heapUsed) {
+            mNanos = nanos;
+            mBytesIn = bytesIn;
+            mBytesOut = bytesOut;
+            mHeapUsed = heapUsed;
+        }
+    }
+
+    // Reassembles the peer's frames from the inbound stream, checks sequence
+    // numbers for gaps and measures end-to-end latency from the peer's send
+    // time, pulling chunks in batches to exercise backpressure. Reads carry no
+    // frame boundaries and dropped chunks cut frames, so frames are found by
+    // their marker and check word.
+    private class FrameSubscriber implements Flow.Subscriber<byte[]> {
+        private final byte[] mFrame;
+        private int mFill;
+        private Flow.Subscription mSubscription;
+        private long mLastSequence;
+        private int mConsumed;
+
+        FrameSubscriber(int frameSize) {
+            mFrame = new byte[frameSize];
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            mSubscription = subscription;
+            subscription.request(REQUEST_BATCH);
+        }
+
+        @Override
+        public void onNext(byte[] chunk) {
+            mStats.mBytesReceived.addAndGet(chunk.length);
+            int offset = 0;
+            while (offset < chunk.length) {
+                if (mFill < 4) {
+                    // Hunt for the marker, its bytes are all different
+                    byte b = chunk[offset++];
+                    if (b == (byte) (SimulatedPeer.FRAME_MAGIC >>> (24 - 8 * mFill))) {
+                        mFrame[mFill++] = b;
+                    }
+                    else {
+                        mFill = b == (byte) (SimulatedPeer.FRAME_MAGIC >>> 24) ? 1 : 0;
+                        mFrame[0] = b;
+                    }
+                    continue;
+                }
+
+                int count = Math.min(mFrame.length - mFill, chunk.length - offset);
+                System.arraycopy(chunk, offset, mFrame, mFill, count);
+                offset += count;
+                mFill += count;
+                if (mFill == mFrame.length) {
+                    onFrame();
+                    mFill = 0;
+                }
+            }
+            if (++mConsumed == REQUEST_BATCH / 2) {
+                mSubscription.request(mConsumed);
+                mConsumed = 0;
+            }
+        }
+
+        private void onFrame() {
+            ByteBuffer buffer = ByteBuffer.wrap(mFrame);
+            buffer.getInt();
+            long sequence = buffer.getLong();
+            long sentNanos = buffer.getLong();
+            if (buffer.getLong() != (sequence ^ sentNanos)) {
+                // A marker inside a cut frame, not a frame start
+                return;
+            }
+
+            mStats.mFramesReceived.incrementAndGet();
+            if (sequence > mLastSequence + 1) {
+                mStats.mFramesMissing.addAndGet(sequence - mLastSequence - 1);
+            }
+            mLastSequence = Math.max(mLastSequence, sequence);
+            mStats.mInboundLatency.record((System.nanoTime() - sentNanos) / 1000);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            mStats.mInboundErrors.incrementAndGet();
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.palmalabs.android.bluetooth.soak;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters shared by the simulated peers and the device drivers. Cumulative
+ * over the whole run.
+ */
+public class SoakStats {
+    // Peer side
+    final AtomicLong mFramesSent = new AtomicLong();
+    final AtomicLong mFramesLostInTransit = new AtomicLong();
+    final AtomicLong mPeerBytesRead = new AtomicLong();
+    final AtomicLong mPeerDisconnects = new AtomicLong();
+    // Library side
+    final AtomicLong mFramesReceived = new AtomicLong();
+    final AtomicLong mBytesReceived = new AtomicLong();
+    final AtomicLong mFramesMissing = new AtomicLong();
+    final AtomicLong mWritesFinished = new AtomicLong();
+    final AtomicLong mWritesFailed = new AtomicLong();
+    final AtomicLong mInboundErrors = new AtomicLong();
+    final AtomicLong mConnects = new AtomicLong();
+    final AtomicLong mLinksLost = new AtomicLong();
+    final AtomicLong mLinksStalled = new AtomicLong();
+    final AtomicLong mLinksEvicted = new AtomicLong();
+    // Every simulated socket handed to the library must eventually be closed by it
+    final AtomicLong mSocketsOpened = new AtomicLong();
+    final AtomicLong mSocketsClosed = new AtomicLong();
+
+    final LatencyHistogram mInboundLatency = new LatencyHistogram();
+    final LatencyHistogram mWriteLatency = new LatencyHistogram();
+}
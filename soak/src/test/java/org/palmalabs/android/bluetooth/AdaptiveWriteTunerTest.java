@@ -0,0 +1,105 @@
+package org.palmalabs.android.bluetooth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AdaptiveWriteTunerTest {
+    private static final long MILLIS = 1000000;
+
+    private AdaptiveWriteTuner mTuner;
+
+    @Before
+    public void setUp() {
+        // Starts at 1024-byte chunks, 20ms maximum coalescing delay, 200ms target
+        mTuner = new AdaptiveWriteTuner(64, 16 * 1024, 20, 200);
+    }
+
+    @Test
+    public void halvesChunkWhenOverTarget() {
+        mTuner.onChunkWritten(1024, 300 * MILLIS);
+        assertEquals(512, mTuner.getChunkSize());
+        mTuner.onChunkWritten(100, 300 * MILLIS);
+        assertEquals(256, mTuner.getChunkSize());
+
+        for (int i = 0; i < 10; i++) {
+            mTuner.onChunkWritten(64, 300 * MILLIS);
+        }
+        assertEquals(64, mTuner.getChunkSize());
+    }
+
+    @Test
+    public void growsTowardsGoodputInBoundedSteps() {
+        // 1MB/s drains 100KB in half the target, but each step grows by a quarter
+        mTuner.onChunkWritten(1024, MILLIS);
+        assertEquals(1280, mTuner.getChunkSize());
+        assertEquals(1024000, mTuner.getThroughput());
+
+        for (int i = 0; i < 100; i++) {
+            int chunkSize = mTuner.getChunkSize();
+            mTuner.onChunkWritten(chunkSize, chunkSize * MILLIS / 1024);
+        }
+        assertEquals(16 * 1024, mTuner.getChunkSize());
+    }
+
+    @Test
+    public void shrinksTowardsGoodput() {
+        // About 5.4KB/s only drains 538 bytes in half the target
+        mTuner.onChunkWritten(1024, 190 * MILLIS);
+        assertEquals(538, mTuner.getChunkSize());
+    }
+
+    @Test
+    public void ignoresThroughputOfPartialChunks() {
+        mTuner.onChunkWritten(100, MILLIS);
+        assertEquals(1024, mTuner.getChunkSize());
+        assertEquals(0, mTuner.getThroughput());
+    }
+
+    @Test
+    public void sendsSparseWritesAtOnce() throws Exception {
+        mTuner.onWriteQueued(10);
+        assertEquals(0, mTuner.getCoalesceDelayNanos());
+
+        Thread.sleep(30);
+        mTuner.onWriteQueued(10);
+        assertEquals(0, mTuner.getCoalesceDelayNanos());
+
+        // The first write after a pause in a steady stream is not held back either
+        for (int i = 0; i < 50; i++) {
+            mTuner.onWriteQueued(10);
+        }
+        assertTrue(mTuner.getCoalesceDelayNanos() > 0);
+        Thread.sleep(30);
+        mTuner.onWriteQueued(10);
+        assertEquals(0, mTuner.getCoalesceDelayNanos());
+    }
+
+    @Test
+    public void coalescesSteadySmallWrites() {
+        for (int i = 0; i < 50; i++) {
+            mTuner.onWriteQueued(10);
+        }
+        long delayNanos = mTuner.getCoalesceDelayNanos();
+        assertTrue(delayNanos > 0);
+        assertTrue(delayNanos <= 20 * MILLIS);
+
+        // Large writes fill chunks on their own and leave the delay alone
+        mTuner.onWriteQueued(2048);
+        assertEquals(delayNanos, mTuner.getCoalesceDelayNanos());
+    }
+
+    @Test
+    public void stopsCoalescingWhenLatencyUsesTheBudget() {
+        for (int i = 0; i < 50; i++) {
+            mTuner.onWriteQueued(10);
+        }
+        assertTrue(mTuner.getCoalesceDelayNanos() > 0);
+
+        // Twice the average latency already exceeds the 200ms target
+        mTuner.onChunkWritten(100, 150 * MILLIS);
+        assertEquals(0, mTuner.getCoalesceDelayNanos());
+    }
+}
@@ -0,0 +1,46 @@
+package org.palmalabs.android.bluetooth;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Blocks writes until opened, like a socket whose peer stopped reading
+class GatedOutputStream extends OutputStream {
+    private final ByteArrayOutputStream mWritten = new ByteArrayOutputStream();
+    private final CountDownLatch mBlocked = new CountDownLatch(1);
+    private final CountDownLatch mOpen = new CountDownLatch(1);
+
+    void open() {
+        mOpen.countDown();
+    }
+
+    boolean awaitBlocked(long timeout) throws InterruptedException {
+        return mBlocked.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized byte[] toByteArray() {
+        return mWritten.toByteArray();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        mBlocked.countDown();
+        try {
+            mOpen.await();
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        synchronized (this) {
+            mWritten.write(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.palmalabs.android.bluetooth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedRingBufferTest {
+    private static final byte[] NO_PREFIX = new byte[0];
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private MappedRingBuffer mRing;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = mFolder.newFile("ring");
+        mRing = new MappedRingBuffer(mFile, 128);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mRing.close();
+    }
+
+    @Test
+    public void readsRecordsInOrder() throws Exception {
+        MappedRingBuffer.Reader reader = new MappedRingBuffer.Reader(mFile);
+        assertNull(reader.next());
+
+        assertTrue(mRing.append(new byte[] { 1, 2 }, new byte[] { 0, 3, 4, 0 }, 1, 2));
+        assertTrue(mRing.append(NO_PREFIX, new byte[] { 5 }, 0, 1));
+
+        assertArrayEquals(new byte[] { 1, 2, 3, 4 }, reader.next());
+        assertArrayEquals(new byte[] { 5 }, reader.next());
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void rejectsRecordLargerThanRing() throws Exception {
+        byte[] data = new byte[128];
+        assertFalse(mRing.append(NO_PREFIX, data, 0, data.length));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCapacityBeyondMappingSize() throws Exception {
+        new MappedRingBuffer(mFolder.newFile("huge"), Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void readerKeepingUpFollowsWraparound() throws Exception {
+        MappedRingBuffer.Reader reader = new MappedRingBuffer.Reader(mFile);
+        // 20-byte records do not divide the ring, so the writer skips space at every wrap
+        for (int i = 0; i < 50; i++) {
+            assertTrue(mRing.append(NO_PREFIX, record(i), 0, 12));
+            assertEquals(i, ByteBuffer.wrap(reader.next()).getInt());
+            assertNull(reader.next());
+        }
+        assertEquals(0, reader.getLostBytes());
+    }
+
+    @Test
+    public void lappedReaderSkipsToOldestRecord() throws Exception {
+        MappedRingBuffer.Reader reader = new MappedRingBuffer.Reader(mFile);
+        for (int i = 0; i < 50; i++) {
+            assertTrue(mRing.append(NO_PREFIX, record(i), 0, 12));
+        }
+
+        // Only the newest records survive, and they come back without gaps
+        byte[] body = reader.next();
+        assertNotNull(body);
+        int expected = ByteBuffer.wrap(body).getInt();
+        assertTrue(expected > 0);
+        while ((body = reader.next()) != null) {
+            assertEquals(++expected, ByteBuffer.wrap(body).getInt());
+        }
+        assertEquals(49, expected);
+        assertTrue(reader.getLostBytes() > 0);
+    }
+
+    @Test
+    public void seekToEndSkipsExistingRecords() throws Exception {
+        mRing.append(NO_PREFIX, record(1), 0, 12);
+        MappedRingBuffer.Reader reader = new MappedRingBuffer.Reader(mFile);
+        reader.seekToEnd();
+        assertNull(reader.next());
+
+        mRing.append(NO_PREFIX, record(2), 0, 12);
+        assertEquals(2, ByteBuffer.wrap(reader.next()).getInt());
+    }
+
+    private static byte[] record(int sequence) {
+        return ByteBuffer.allocate(12).putInt(sequence).array();
+    }
+}
@@ -0,0 +1,259 @@
+package org.palmalabs.android.bluetooth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RfcommInboundPublisherTest {
+    private static final long TIMEOUT = 5000;
+    // Long enough for a reader that should be blocked to have read on
+    private static final long SETTLE = 200;
+
+    @Test
+    public void bufferStopsReadingWhenFull() throws Exception {
+        ChunkStream stream = new ChunkStream();
+        for (int i = 0; i < 10; i++) {
+            stream.add(i);
+        }
+        RfcommInboundPublisher publisher = new RfcommInboundPublisher("00:11:22:33:44:55",
+                stream, RfcommInboundPublisher.OverflowStrategy.BUFFER, 2);
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        publisher.subscribe(subscriber);
+
+        // Nothing requested: the buffer fills and the stream is left alone
+        Thread.sleep(SETTLE);
+        assertEquals(2, stream.getReads());
+        assertNull(subscriber.mChunks.poll());
+
+        // Each delivered chunk frees one slot, which allows exactly one more read
+        subscriber.mSubscription.request(3);
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(new byte[] { (byte) i },
+                    subscriber.mChunks.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+        Thread.sleep(SETTLE);
+        assertEquals(5, stream.getReads());
+        assertEquals(0, publisher.getDroppedFrames());
+
+        publisher.close();
+        stream.end();
+    }
+
+    @Test
+    public void dropOldestKeepsNewestChunks() throws Exception {
+        ChunkStream stream = new ChunkStream();
+        for (int i = 0; i < 5; i++) {
+            stream.add(i);
+        }
+        stream.end();
+        RfcommInboundPublisher publisher = new RfcommInboundPublisher("00:11:22:33:44:55",
+                stream, RfcommInboundPublisher.OverflowStrategy.DROP_OLDEST, 2);
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        publisher.subscribe(subscriber);
+
+        // Drop strategies never hold the reader back
+        assertTrue(stream.awaitEnd(TIMEOUT));
+        assertEquals(3, publisher.getDroppedFrames());
+
+        subscriber.mSubscription.request(10);
+        assertTrue(subscriber.mCompleted.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertArrayEquals(new byte[] { 3 }, subscriber.mChunks.poll());
+        assertArrayEquals(new byte[] { 4 }, subscriber.mChunks.poll());
+        assertNull(subscriber.mChunks.poll());
+    }
+
+    @Test
+    public void dropNewestKeepsOldestChunks() throws Exception {
+        ChunkStream stream = new ChunkStream();
+        for (int i = 0; i < 5; i++) {
+            stream.add(i);
+        }
+        stream.end();
+        RfcommInboundPublisher publisher = new RfcommInboundPublisher("00:11:22:33:44:55",
+                stream, RfcommInboundPublisher.OverflowStrategy.DROP_NEWEST, 2);
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        publisher.subscribe(subscriber);
+
+        assertTrue(stream.awaitEnd(TIMEOUT));
+        assertEquals(3, publisher.getDroppedFrames());
+
+        subscriber.mSubscription.request(10);
+        assertTrue(subscriber.mCompleted.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertArrayEquals(new byte[] { 0 }, subscriber.mChunks.poll());
+        assertArrayEquals(new byte[] { 1 }, subscriber.mChunks.poll());
+        assertNull(subscriber.mChunks.poll());
+    }
+
+    @Test
+    public void acceptsNewSubscriberAfterCancel() throws Exception {
+        ChunkStream stream = new ChunkStream();
+        stream.add(0);
+        RfcommInboundPublisher publisher = new RfcommInboundPublisher("00:11:22:33:44:55",
+                stream, RfcommInboundPublisher.OverflowStrategy.BUFFER, 2);
+        CollectingSubscriber first = new CollectingSubscriber();
+        publisher.subscribe(first);
+        first.mSubscription.request(1);
+        assertArrayEquals(new byte[] { 0 }, first.mChunks.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        CollectingSubscriber rejected = new CollectingSubscriber();
+        publisher.subscribe(rejected);
+        assertTrue(rejected.mError.getMessage().contains("already has a subscriber"));
+
+        // The reader finishes the read it is blocked in, then waits for a subscriber
+        assertTrue(stream.awaitBlocked(TIMEOUT));
+        first.mSubscription.cancel();
+        stream.add(1);
+        stream.add(2);
+        Thread.sleep(SETTLE);
+        assertEquals(2, stream.getReads());
+
+        CollectingSubscriber second = new CollectingSubscriber();
+        publisher.subscribe(second);
+        assertNull(second.mError);
+        second.mSubscription.request(1);
+        assertArrayEquals(new byte[] { 1 }, second.mChunks.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // A stale subscription no longer affects the link
+        first.mSubscription.cancel();
+        first.mSubscription.request(1);
+        second.mSubscription.request(1);
+        assertArrayEquals(new byte[] { 2 }, second.mChunks.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertNull(first.mChunks.poll());
+
+        stream.end();
+        assertTrue(second.mCompleted.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void rejectsSubscriberOnceLinkEnded() throws Exception {
+        ChunkStream stream = new ChunkStream();
+        stream.end();
+        RfcommInboundPublisher publisher = new RfcommInboundPublisher("00:11:22:33:44:55",
+                stream, RfcommInboundPublisher.OverflowStrategy.BUFFER, 2);
+        CollectingSubscriber first = new CollectingSubscriber();
+        publisher.subscribe(first);
+        assertTrue(first.mCompleted.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        CollectingSubscriber second = new CollectingSubscriber();
+        publisher.subscribe(second);
+        assertTrue(second.mError.getMessage().contains("is closed"));
+    }
+
+    @Test
+    public void nonPositiveRequestEndsOnlyThatSubscription() throws Exception {
+        ChunkStream stream = new ChunkStream();
+        stream.add(0);
+        RfcommInboundPublisher publisher = new RfcommInboundPublisher("00:11:22:33:44:55",
+                stream, RfcommInboundPublisher.OverflowStrategy.BUFFER, 2);
+        CollectingSubscriber first = new CollectingSubscriber();
+        publisher.subscribe(first);
+        first.mSubscription.request(0);
+        assertTrue(first.mError instanceof IllegalArgumentException);
+
+        CollectingSubscriber second = new CollectingSubscriber();
+        publisher.subscribe(second);
+        second.mSubscription.request(1);
+        assertArrayEquals(new byte[] { 0 }, second.mChunks.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        publisher.close();
+        stream.end();
+    }
+
+    // Returns one queued chunk per read and counts the reads
+    private static class ChunkStream extends InputStream {
+        private static final byte[] END = new byte[0];
+
+        private final BlockingQueue<byte[]> mChunks = new LinkedBlockingQueue<byte[]>();
+        private final CountDownLatch mEnded = new CountDownLatch(1);
+        private volatile int mReads;
+        private volatile boolean mBlocked;
+
+        void add(int value) {
+            mChunks.add(new byte[] { (byte) value });
+        }
+
+        void end() {
+            mChunks.add(END);
+        }
+
+        int getReads() {
+            return mReads;
+        }
+
+        boolean awaitBlocked(long timeout) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (!mBlocked && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+
+            return mBlocked;
+        }
+
+        boolean awaitEnd(long timeout) throws InterruptedException {
+            return mEnded.await(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            byte[] chunk;
+            try {
+                mBlocked = mChunks.isEmpty();
+                chunk = mChunks.take();
+                mBlocked = false;
+            }
+            catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (chunk == END) {
+                mEnded.countDown();
+                return -1;
+            }
+            mReads++;
+            System.arraycopy(chunk, 0, b, off, chunk.length);
+
+            return chunk.length;
+        }
+    }
+
+    private static class CollectingSubscriber implements Flow.Subscriber<byte[]> {
+        final BlockingQueue<byte[]> mChunks = new LinkedBlockingQueue<byte[]>();
+        final CountDownLatch mCompleted = new CountDownLatch(1);
+        volatile Flow.Subscription mSubscription;
+        volatile Throwable mError;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            mSubscription = subscription;
+        }
+
+        @Override
+        public void onNext(byte[] item) {
+            mChunks.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            mError = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            mCompleted.countDown();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.palmalabs.android.bluetooth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RfcommWriteWatchdogTest {
+    private static final long TIMEOUT = 5000;
+
+    private final List<RfcommWriter> mStalled =
+            Collections.synchronizedList(new ArrayList<RfcommWriter>());
+    private final List<RfcommWriter> mWriters = new ArrayList<RfcommWriter>();
+    private GatedOutputStream mOutputStream;
+    private RfcommWriteWatchdog mWatchdog;
+
+    @Before
+    public void setUp() {
+        mOutputStream = new GatedOutputStream();
+        // Checks are run by hand, the interval is never used
+        mWatchdog = new RfcommWriteWatchdog(TIMEOUT, 50, new RfcommWriteWatchdog.Listener() {
+            @Override
+            public void onWriterStalled(RfcommWriter writer) {
+                mStalled.add(writer);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mOutputStream.open();
+        for (RfcommWriter writer : mWriters) {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void reportsBlockedWriterOnce() throws Exception {
+        RfcommWriter writer = watch(mOutputStream);
+        writer.write(new byte[] { 1 }, null);
+        assertTrue(mOutputStream.awaitBlocked(TIMEOUT));
+        mWatchdog.check();
+        assertTrue(mStalled.isEmpty());
+
+        Thread.sleep(100);
+        mWatchdog.check();
+        mWatchdog.check();
+        assertEquals(1, mStalled.size());
+        assertSame(writer, mStalled.get(0));
+    }
+
+    @Test
+    public void reportsStartedWritePastDeadline() throws Exception {
+        mWatchdog.setStallTimeout(TIMEOUT);
+        RfcommWriter writer = watch(mOutputStream);
+        RfcommWriter.WriteHandle handle = writer.write(new byte[] { 1 }, 20, null);
+        assertTrue(mOutputStream.awaitBlocked(TIMEOUT));
+
+        // Far from the stall timeout, but the link now carries a partial write
+        Thread.sleep(50);
+        mWatchdog.check();
+        assertTrue(handle.isDone());
+        assertEquals(1, mStalled.size());
+    }
+
+    @Test
+    public void leavesIdleWritersAlone() throws Exception {
+        watch(new ByteArrayOutputStream());
+        RfcommWriter.WriteHandle handle = watch(new ByteArrayOutputStream())
+                .write(new byte[] { 1 }, 20, null);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!handle.isDone() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+
+        // Idle writers report no blocked time, however long the stall timeout
+        Thread.sleep(100);
+        mWatchdog.check();
+        assertTrue(mStalled.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroStallTimeout() {
+        mWatchdog.setStallTimeout(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeStallTimeout() {
+        new RfcommWriteWatchdog(TIMEOUT, -1, null);
+    }
+
+    private RfcommWriter watch(OutputStream outputStream) {
+        RfcommWriter writer = new RfcommWriter("00:11:22:33:44:55", outputStream,
+                new AdaptiveWriteTuner());
+        mWriters.add(writer);
+        mWatchdog.watch(writer);
+
+        return writer;
+    }
+}
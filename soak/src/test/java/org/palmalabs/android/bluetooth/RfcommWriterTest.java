@@ -0,0 +1,193 @@
+package org.palmalabs.android.bluetooth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RfcommWriterTest {
+    private static final long TIMEOUT = 5000;
+    private static final int CHUNK_SIZE = 64;
+
+    private GatedOutputStream mOutputStream;
+    private RfcommWriter mWriter;
+    private final List<Integer> mChunks = Collections.synchronizedList(new ArrayList<Integer>());
+
+    @Before
+    public void setUp() {
+        mOutputStream = new GatedOutputStream();
+        // Fixed chunk size and no coalescing delay keep the chunking predictable
+        mWriter = new RfcommWriter("00:11:22:33:44:55", mOutputStream,
+                new AdaptiveWriteTuner(CHUNK_SIZE, CHUNK_SIZE, 0, 1000));
+        mWriter.setChunkObserver(new RfcommWriter.ChunkObserver() {
+            @Override
+            public void onChunkWritten(String deviceAddress, byte[] data, int offset, int length) {
+                mChunks.add(length);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mOutputStream.open();
+        mWriter.close();
+    }
+
+    @Test
+    public void splitsLargeWrite() throws Exception {
+        mOutputStream.open();
+        byte[] data = sequence(200);
+        ResultCallback callback = new ResultCallback();
+        mWriter.write(data, callback);
+
+        assertTrue(callback.await());
+        assertTrue(callback.mFinished);
+        assertEquals(Arrays.asList(64, 64, 64, 8), mChunks);
+        assertArrayEquals(data, mOutputStream.toByteArray());
+    }
+
+    @Test
+    public void coalescesQueuedWrites() throws Exception {
+        ResultCallback first = new ResultCallback();
+        mWriter.write(new byte[] { 0 }, first);
+        assertTrue(mOutputStream.awaitBlocked(TIMEOUT));
+
+        // Queued behind the blocked write, ten small writes fill one chunk and a bit
+        List<ResultCallback> callbacks = new ArrayList<ResultCallback>();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(0);
+        for (int i = 0; i < 10; i++) {
+            byte[] data = sequence(8);
+            expected.write(data);
+            ResultCallback callback = new ResultCallback();
+            callbacks.add(callback);
+            mWriter.write(data, callback);
+        }
+        mOutputStream.open();
+
+        for (ResultCallback callback : callbacks) {
+            assertTrue(callback.await());
+            assertTrue(callback.mFinished);
+        }
+        assertEquals(Arrays.asList(1, 64, 16), mChunks);
+        assertArrayEquals(expected.toByteArray(), mOutputStream.toByteArray());
+    }
+
+    @Test
+    public void cancelsQueuedWriteOnly() throws Exception {
+        ResultCallback first = new ResultCallback();
+        RfcommWriter.WriteHandle started = mWriter.write(new byte[] { 1 }, first);
+        assertTrue(mOutputStream.awaitBlocked(TIMEOUT));
+        ResultCallback second = new ResultCallback();
+        RfcommWriter.WriteHandle queued = mWriter.write(new byte[] { 2 }, second);
+
+        assertFalse(started.cancel());
+        assertTrue(queued.cancel());
+        assertTrue(second.await());
+        assertTrue(second.mError instanceof InterruptedIOException);
+        assertFalse(queued.cancel());
+
+        mOutputStream.open();
+        assertTrue(first.await());
+        assertTrue(first.mFinished);
+        assertArrayEquals(new byte[] { 1 }, mOutputStream.toByteArray());
+    }
+
+    @Test
+    public void expiresQueuedWritePastDeadline() throws Exception {
+        ResultCallback first = new ResultCallback();
+        mWriter.write(new byte[] { 1 }, first);
+        assertTrue(mOutputStream.awaitBlocked(TIMEOUT));
+        ResultCallback second = new ResultCallback();
+        RfcommWriter.WriteHandle queued = mWriter.write(new byte[] { 2 }, 50, second);
+
+        // Nothing of it went out, so the link is still clean
+        Thread.sleep(100);
+        assertFalse(mWriter.expireOverdueWrites());
+        assertTrue(second.await());
+        assertTrue(second.mError instanceof InterruptedIOException);
+        assertTrue(queued.isDone());
+
+        mOutputStream.open();
+        assertTrue(first.await());
+        assertTrue(first.mFinished);
+        assertArrayEquals(new byte[] { 1 }, mOutputStream.toByteArray());
+    }
+
+    @Test
+    public void expiresBlockedWritePastDeadline() throws Exception {
+        ResultCallback callback = new ResultCallback();
+        mWriter.write(new byte[] { 1 }, 50, callback);
+        assertTrue(mOutputStream.awaitBlocked(TIMEOUT));
+        assertFalse(mWriter.expireOverdueWrites());
+
+        // The whole write is inside the blocked call
+        Thread.sleep(100);
+        assertTrue(mWriter.expireOverdueWrites());
+        assertTrue(callback.await());
+        assertTrue(callback.mError instanceof InterruptedIOException);
+
+        // Completing the call later does not report the write a second time
+        mOutputStream.open();
+        Thread.sleep(100);
+        assertFalse(callback.mFinished);
+    }
+
+    @Test
+    public void expiresPartlyWrittenWritePastDeadline() throws Exception {
+        ResultCallback callback = new ResultCallback();
+        mWriter.write(sequence(200), 50, callback);
+        assertTrue(mOutputStream.awaitBlocked(TIMEOUT));
+
+        // Only the first chunk was handed to the stream, the rest is still queued
+        Thread.sleep(100);
+        assertTrue(mWriter.expireOverdueWrites());
+        assertTrue(callback.await());
+        assertTrue(callback.mError instanceof InterruptedIOException);
+    }
+
+    private static byte[] sequence(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+
+        return data;
+    }
+
+    private static class ResultCallback implements RfcommWriter.Callback {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        volatile boolean mFinished;
+        volatile IOException mError;
+
+        boolean await() throws InterruptedException {
+            return mDone.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void onWriteFinished() {
+            mFinished = true;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onWriteError(IOException e) {
+            mError = e;
+            mDone.countDown();
+        }
+    }
+}